@@ -2,112 +2,128 @@ package com.cheng.mydb.backend.common;
 
 import com.cheng.mydb.common.Error;
 
-import java.util.HashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * AbstractCache 实现了一个引用计数策略的缓存
+ * 每个key对应一个CacheEntry，第一个未命中的线程负责从数据源获取资源并完成entry中的future，
+ * 同时获取同一个key的其他线程直接等待这个future，不再sleep轮询。
+ * 命中只需要一次ConcurrentHashMap读和一次CAS，不同key之间不会竞争同一把锁。
+ */
 public abstract class AbstractCache<T> {
 
-    private HashMap<Long,T> cache;              // 实际缓存的数据
-    private HashMap<Long,Integer> references;   // 资源引用的个数
-    private HashMap<Long,Boolean> getting;      // 资源正在被从数据源获取
+    private static class CacheEntry<T> {
+        final CompletableFuture<T> future=new CompletableFuture<>();  // 资源从数据源获取完成后被complete
+        final AtomicInteger references=new AtomicInteger(1);          // 资源引用的个数，-1表示已被驱逐
+        final CompletableFuture<Void> evicted=new CompletableFuture<>(); // 写回完成、从缓存中移除后被complete
+    }
+
+    private ConcurrentHashMap<Long,CacheEntry<T>> cache;   // 实际缓存的数据
 
-    private Lock lock;
     private int maxResources;
-    private int cnt=0;
+    private AtomicInteger cnt;
 
     public AbstractCache(int maxResources) {
         this.maxResources=maxResources;
-        cache=new HashMap<>();
-        references=new HashMap<>();
-        getting=new HashMap<>();
-        lock=new ReentrantLock();
+        cache=new ConcurrentHashMap<>();
+        cnt=new AtomicInteger();
     }
 
     protected T get(long key) throws Exception {
         while(true){
-            lock.lock();
-            if (getting.containsKey(key)){  // 有其他线程正在从数据源中获取数据
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            CacheEntry<T> entry=cache.get(key);
+            if (entry==null){   // 缓存中不存在，尝试由自己从数据源获取
+                CacheEntry<T> created=new CacheEntry<>();
+                entry=cache.putIfAbsent(key,created);
+                if (entry==null){
+                    return load(key,created);
                 }
-                continue;
             }
 
-            if (cache.containsKey(key)){    // 缓存中有直接返回
-                T obj=cache.get(key);
-                references.put(key,references.get(key)+1);
-                lock.unlock();
-                return obj;
+            if (!retain(entry)){    // entry正在被驱逐，等待写回完成后重新查找，不会从数据源读到写回之前的内容
+                entry.evicted.join();
+                continue;
             }
+            // 缓存中有（或者其他线程正在从数据源中获取），等待资源就绪
+            return await(entry.future);
+        }
+    }
 
-            // 缓存中不存在，从数据源获取
-            if (maxResources>0 && cnt==maxResources){   // 缓存资源量到达最大，无法继续添加
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            cnt++;
-            getting.put(key,true);
-            lock.unlock();
-            break;
+    // 从数据源获取资源，完成entry中的future
+    private T load(long key,CacheEntry<T> entry) throws Exception {
+        if (maxResources>0 && cnt.incrementAndGet()>maxResources){   // 缓存资源量到达最大，无法继续添加
+            cnt.decrementAndGet();
+            cache.remove(key,entry);
+            entry.future.completeExceptionally(Error.CacheFullException);
+            throw Error.CacheFullException;
+        }
+        if (maxResources<=0){
+            cnt.incrementAndGet();
         }
 
-        // 从数据源获取
-        T obj=null;
+        T obj;
         try {
             obj=getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            cnt--;
-            getting.remove(key);
-            lock.unlock();
+            cnt.decrementAndGet();
+            cache.remove(key,entry);
+            entry.future.completeExceptionally(e);
             throw e;
         }
-        lock.lock();
-        getting.remove(key);
-        cache.put(key,obj);
-        references.put(key,1);
-        lock.unlock();
-
+        entry.future.complete(obj);
         return obj;
     }
 
+    // 引用计数加1，entry已被驱逐时返回false
+    private boolean retain(CacheEntry<T> entry){
+        while(true){
+            int ref=entry.references.get();
+            if (ref<0) return false;
+            if (entry.references.compareAndSet(ref,ref+1)) return true;
+        }
+    }
+
+    private T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause=e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+
     // 释放一个资源
     protected void release(long key){
-        lock.lock();
-        try {
-            int ref=references.get(key)-1;
-            if (ref==0){
-                T obj=cache.get(key);
-                releaseForCache(obj);
-                cnt--;
-                cache.remove(key);
-                references.remove(key);
-            }
-            else{
-                references.put(key,ref);
+        CacheEntry<T> entry=cache.get(key);
+        if (entry==null) return;
+        int ref=entry.references.decrementAndGet();
+        // 引用归零后只有CAS到-1成功的线程负责驱逐，期间被重新引用则放弃驱逐。
+        // 先写回再从缓存中移除，写回期间获取同一个key的线程等待evicted
+        if (ref==0 && entry.references.compareAndSet(0,-1)){
+            try {
+                releaseForCache(entry.future.join());
+            } finally {
+                cache.remove(key,entry);
+                cnt.decrementAndGet();
+                entry.evicted.complete(null);
             }
         }
-        finally {
-            lock.unlock();
-        }
     }
 
     protected void close(){
-        lock.lock();
-        try {
-            for (long key:cache.keySet()){
-                release(key);
-                references.remove(key);
-                cache.remove(key);
+        for (Map.Entry<Long,CacheEntry<T>> e:cache.entrySet()){
+            CacheEntry<T> entry=e.getValue();
+            if (!cache.remove(e.getKey(),entry)) continue;
+            if (entry.future.isDone() && !entry.future.isCompletedExceptionally()){
+                releaseForCache(entry.future.join());
             }
-        }
-        finally {
-            lock.unlock();
+            cnt.decrementAndGet();
+            entry.evicted.complete(null);
         }
     }
 
@@ -1,16 +1,16 @@
 package com.cheng.mydb.backend.common;
 
-import com.cheng.mydb.backend.dm.pageCache.PageCache;
-import com.cheng.mydb.backend.dm.pageCache.PageCacheImpl;
+import java.nio.ByteBuffer;
 
+// 缓冲区中[start,end)的一段，raw通常是页面缓冲区本身，只能用绝对下标读写
 public class SubArray {
-    public byte[] raw;
+    public ByteBuffer raw;
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
     }
-}
\ No newline at end of file
+}
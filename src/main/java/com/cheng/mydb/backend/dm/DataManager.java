@@ -4,32 +4,75 @@ import com.cheng.mydb.backend.dm.dataItem.DataItem;
 import com.cheng.mydb.backend.dm.logger.Logger;
 import com.cheng.mydb.backend.dm.page.PageOne;
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import com.cheng.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import com.cheng.mydb.backend.tm.TransactionManager;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid,byte[] data) throws Exception;
+    long insertVersioned(long xid,byte[] data) throws Exception;    // 插入VM的Entry，之后可以被scanVersioned访问到
+    void scanVersioned(LongConsumer visitor);   // 依次访问所有合法的Entry的uid
     void close();
+    void prefetch(long uid);    // 提示之后会读取uid所在的页面，异步预读
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
-        Logger lg = Logger.create(path);
+        return create(path, mem, tm, false);
+    }
 
+    // mapped为true时数据文件通过内存映射访问，适合读多写少的场景
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean mapped) {
+        return create(path, mem, tm, mapped, PageCache.DEFAULT_IO_CONCURRENCY);
+    }
+
+    // ioConcurrency限制同时进行的页面IO数，磁盘队列越深可以设置得越大
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean mapped, int ioConcurrency) {
+        PageCache pc = PageCache.create(path, mem, mapped, ioConcurrency);
+        Logger lg = Logger.create(path);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        pc.setLogFlusher(dm::flushLogForWrite);
+        tm.setLogPublisher(dm::publishLog);
+        tm.setLogFlusher(() -> lg.flush(lg.end()));
+        dm.freeSpaceMap = new FreeSpaceMap(path);
         dm.initPageOne();
+        dm.startCheckpointer();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
-        Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+        return open(path, mem, tm, false);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mapped) {
+        return open(path, mem, tm, mapped, PageCache.DEFAULT_IO_CONCURRENCY);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mapped, int ioConcurrency) {
+        PageCache pc = PageCache.open(path, mem, mapped, ioConcurrency);
+        DataManagerImpl dm = new DataManagerImpl(pc, null, tm);
+        dm.freeSpaceMap = new FreeSpaceMap(path);
+        boolean clean = dm.loadCheckPageOne();
+        // checkpoint之前的日志已经持久化，打开日志时只检查之后的部分
+        Logger lg = Logger.open(path, PageOne.getCheckpointLsn(dm.pageOne));
+        dm.logger = lg;
+        pc.setLogFlusher(dm::flushLogForWrite);
+        tm.setLogPublisher(dm::publishLog);
+        tm.setLogFlusher(() -> lg.flush(lg.end()));
+        if(!clean) {
+            // 空闲空间表是上一次checkpoint保存的，只需要重新计算恢复时插入过的页面，之后的checkpoint会保存新的表
+            Set<Integer> inserted = Recover.recover(tm, lg, pc, PageOne.getCheckpointLsn(dm.pageOne),
+                    PageOne.getCheckpointPageNumber(dm.pageOne), PageOne.getCheckpointUndoLsn(dm.pageOne));
+            dm.loadPageIndex(inserted);
+            dm.checkpoint();
+        } else {
+            dm.loadPageIndex(Collections.emptySet());
         }
-        dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer();
 
         return dm;
     }
@@ -3,27 +3,58 @@ package com.cheng.mydb.backend.dm;
 import com.cheng.mydb.backend.common.AbstractCache;
 import com.cheng.mydb.backend.dm.dataItem.DataItem;
 import com.cheng.mydb.backend.dm.dataItem.DataItemImpl;
+import com.cheng.mydb.backend.dm.dataItem.ItemRedo;
 import com.cheng.mydb.backend.dm.logger.Logger;
 import com.cheng.mydb.backend.dm.page.Page;
 import com.cheng.mydb.backend.dm.page.PageOne;
 import com.cheng.mydb.backend.dm.page.PageX;
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import com.cheng.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import com.cheng.mydb.backend.dm.pageIndex.PageIndex;
 import com.cheng.mydb.backend.dm.pageIndex.PageInfo;
 import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
 import com.cheng.mydb.backend.utils.Panic;
 import com.cheng.mydb.backend.utils.Types;
 import com.cheng.mydb.common.Error;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
 // DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    private static final long CHECKPOINT_INTERVAL=30;   // checkpoint的周期(s)
+    private static final int FILL_PREFETCH=64;          // fillPageIndex每次预读的页数
+    private static final int LOG_BUFFER_SIZE=1<<16;     // 事务私有日志缓冲区超过这个大小时写入日志
 
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pageIndex;
+    FreeSpaceMap freeSpaceMap;
     Page pageOne;
 
+    // 页面写回前会先持久化到页面LSN为止的日志，修改页面不需要等待日志持久化，
+    // 提交时再由TM持久化日志。内存映射的页面随时可能被写回，仍然需要先持久化日志再修改
+    private boolean syncLog;
+
+    // 写日志和修改页面在同一个读锁内完成，checkpoint获取写锁时没有进行到一半的修改
+    private ReadWriteLock modifyLock;
+    private ScheduledExecutorService checkpointer;
+    // 写过日志的事务的第一条日志位置的下界，checkpoint时去掉已经结束的事务
+    private ConcurrentHashMap<Long,Long> firstLsn;
+    // 事务私有的日志缓冲区，事务的update日志在提交或回滚时一次写入日志
+    private ConcurrentHashMap<Long,LogBuffer> logBuffers;
+
 
     public DataManagerImpl(PageCache pc,Logger logger,TransactionManager tm) {
         super(0);
@@ -31,6 +62,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.logger=logger;
         this.tm=tm;
         this.pageIndex=new PageIndex();
+        this.modifyLock=new ReentrantReadWriteLock();
+        this.firstLsn=new ConcurrentHashMap<>();
+        this.logBuffers=new ConcurrentHashMap<>();
+        this.syncLog=!pc.consistentWriteBack();
     }
 
 
@@ -50,23 +85,24 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 接着才可以通过 pageX 插入数据，并返回插入位置的偏移。最后需要将页面信息重新插入 pageIndex。
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        byte[] raw= DataItem.wrapDataItemRaw(data);
+        return insert(xid,data,(byte)0);
+    }
+
+    @Override
+    public long insertVersioned(long xid, byte[] data) throws Exception {
+        return insert(xid,data,DataItem.FLAG_VERSIONED);
+    }
+
+    private long insert(long xid, byte[] data, byte flags) throws Exception {
+        byte[] raw= DataItem.wrapDataItemRaw(data,flags);
         if (raw.length>PageX.MAX_FREE_SPACE){
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pageInfo=null;
-        for (int i = 0; i < 5; i++) {
-            pageInfo=pageIndex.select(raw.length);
-            if (pageInfo!=null) break;
-            else{   // 没有足够空间的页就新建一个
-                int newPgno=pc.newPage(PageX.initRaw());
-                pageIndex.add(newPgno, PageX.MAX_FREE_SPACE);
-            }
-        }
-
-        if (pageInfo==null){
-            throw Error.DatabaseBusyException;
+        PageInfo pageInfo=pageIndex.select(raw.length);
+        if (pageInfo==null){   // 没有足够空间的页就新建一个，新页直接由当前线程使用，不会被其他线程抢走
+            int newPgno=pc.newPage(PageX.initRaw());
+            pageInfo=new PageInfo(newPgno,PageX.MAX_FREE_SPACE);
         }
 
         Page page=null;
@@ -74,18 +110,31 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
         try{
             page=pc.getPage(pageInfo.pgno);
-            // 首先做日志
-            byte[] log=Recover.insertLog(xid,page,raw);
-            logger.log(log);
+            short offset;
+            lockModify();
+            page.beginModify();
+            try {
+                // 首先做日志
+                byte[] log=Recover.insertLog(xid,page,raw);
+                trackFirstLsn(xid);
+                long lsn=logger.log(log);
+                if (syncLog){
+                    logger.flush(lsn);
+                }
 
-            // 再执行插入操作
-            short offset= PageX.insert(page,raw);
-            page.release();
+                // 再执行插入操作
+                PageX.setPageLsn(page,lsn);
+                offset= PageX.insert(page,raw);
+            } finally {
+                page.endModify();
+                unlockModify();
+            }
             return Types.addressToUid(pageInfo.pgno,offset);
         } finally {
-            // 将取出的pg重新插入pIndex
+            // 将取出的pg重新插入pIndex。释放之后页面的帧可能被换出并交给其他页，空闲空间要在释放之前读取
             if (page!=null){
                 pageIndex.add(pageInfo.pgno,PageX.getFreeSpace(page));
+                page.release();
             }
             else{
                 pageIndex.add(pageInfo.pgno, freeSpace);
@@ -93,9 +142,60 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    // 逐页扫描，先收集一页中的uid并释放页面，再交给visitor，visitor中可以读取和修改DataItem。
+    // 扫描期间插入的数据不一定会被访问到
+    @Override
+    public void scanVersioned(LongConsumer visitor) {
+        int pageNumber=pc.getPageNumber();
+        List<Long> uids=new ArrayList<>();
+        for (int i=2;i<=pageNumber;i++){
+            if ((i-2)%FILL_PREFETCH==0){
+                pc.prefetch(i,FILL_PREFETCH);
+            }
+            Page pg=null;
+            try {
+                pg=pc.getPage(i);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            try {
+                ByteBuffer raw=pg.getData();
+                int fso=PageX.getFSO(pg);
+                int offset=PageX.OFFSET_DATA;
+                while(offset+DataItem.OFFSET_DATA<=fso){
+                    byte flag=raw.get(offset+DataItem.OFFSET_VALID);
+                    if ((flag&DataItem.FLAG_VERSIONED)!=0 && (flag&DataItem.FLAG_INVALID)==0){
+                        uids.add(Types.addressToUid(i,(short)offset));
+                    }
+                    offset+=DataItem.OFFSET_DATA+raw.getShort(offset+DataItem.OFFSET_SIZE);
+                }
+            } finally {
+                pg.release();
+            }
+            for (long uid:uids){
+                visitor.accept(uid);
+            }
+            uids.clear();
+        }
+    }
+
+    @Override
+    public void prefetch(long uid) {
+        pc.prefetch((int)(uid>>>32),1);
+    }
+
     @Override
     public void close() {
+        if (checkpointer!=null){
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1,TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
+        checkpoint();   // 下次打开时不需要再检查checkpoint之前的日志，同时保存空闲空间表
         logger.close();
         PageOne.setVcClose(pageOne);
         pageOne.release();
@@ -129,20 +229,50 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         pc.flushPage(pageOne);
     }
 
-    // 在打开已有文件时时读入PageOne，并验证正确性
+    // 在打开已有文件时时读入PageOne，并验证正确性。格式不对的文件不能恢复也不能打开
     boolean loadCheckPageOne() {
         try {
             pageOne=pc.getPage(1);
+            PageOne.checkFormat(pageOne);
         } catch (Exception e) {
             Panic.panic(e);
         }
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
+    // 从最近一次checkpoint保存的空闲空间表中读入pageIndex，stale中的页面（恢复时重放过插入的页面）、
+    // checkpoint之后新建的页面和保存时空闲空间未知的页面重新读入计算。空闲空间表不可信时扫描所有页面
+    void loadPageIndex(Set<Integer> stale) {
+        int[] spaces=freeSpaceMap.load(PageOne.getCheckpointLsn(pageOne));
+        if (spaces==null){
+            fillPageIndex();
+            return;
+        }
+        int pageNumber=pc.getPageNumber();
+        for (int pgno=2;pgno<=pageNumber;pgno++){
+            if (pgno<spaces.length && spaces[pgno]!=FreeSpaceMap.UNKNOWN && !stale.contains(pgno)){
+                pageIndex.add(pgno,spaces[pgno]);
+                continue;
+            }
+            Page pg=null;
+            try {
+                pg=pc.getPage(pgno);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            pageIndex.add(pgno,PageX.getFreeSpace(pg));
+            pg.release();
+        }
+    }
+
+    // 初始化pageIndex，每次预读后面FILL_PREFETCH页，扫描时不用逐页等待磁盘
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        pc.prefetch(2,FILL_PREFETCH);
         for(int i = 2; i <= pageNumber; i ++) {
+            if ((i-2)%FILL_PREFETCH==0){
+                pc.prefetch(i+FILL_PREFETCH,FILL_PREFETCH);
+            }
             Page pg = null;
             try {
                 pg = pc.getPage(i);
@@ -158,9 +288,113 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         super.release(dataItem.getUid());
     }
 
-    // 为xid生成update日志
+    // 为xid生成update日志，并记录到页面的LSN中
     public void logDataItem(long xid,DataItem dataItem){
-        byte[] log=Recover.updateLog(xid,dataItem);
-        logger.log(log);
+        writeDataItemLog(xid,dataItem,Recover.updateLog(xid,dataItem));
+    }
+
+    // 为xid生成逻辑redo日志。内存映射的页面随时可能被操作系统写回，磁盘上可能是修改了一半的页面，
+    // 这时逻辑redo不能安全地重放，仍然记录修改的字节
+    public void logDataItem(long xid,DataItem dataItem,ItemRedo redo){
+        if (!pc.consistentWriteBack()){
+            logDataItem(xid,dataItem);
+            return;
+        }
+        writeDataItemLog(xid,dataItem,Recover.redoLog(xid,dataItem,redo));
+    }
+
+    // 普通事务的日志先写入私有缓冲区，不记录页面LSN，由页面写回前的flushLogForWrite保证先于页面持久化，
+    // 缓冲区中的update日志都是物理日志，重复redo没有影响。
+    // SUPER_XID的逻辑redo不能重复执行，内存映射的页面随时可能写回，这两种日志仍然直接写入日志
+    private void writeDataItemLog(long xid,DataItem dataItem,byte[] log){
+        trackFirstLsn(xid);
+        if (!syncLog && xid!=TransactionManagerImpl.SUPER_XID){
+            LogBuffer buf=logBuffers.computeIfAbsent(xid,x -> new LogBuffer());
+            if (buf.add(log)>=LOG_BUFFER_SIZE){
+                buf.publish(logger);
+            }
+            return;
+        }
+        long lsn=logger.log(log);
+        if (syncLog){
+            logger.flush(lsn);
+        }
+        PageX.setPageLsn(dataItem.getPage(),lsn);
+    }
+
+    // 事务提交或回滚、写入事务状态之前调用，把xid缓冲的日志写入日志
+    // 先写入日志再移出缓冲区，并发的写回要么看到这个缓冲区，要么看到已经追加到日志中的内容
+    public void publishLog(long xid){
+        LogBuffer buf=logBuffers.get(xid);
+        if (buf!=null){
+            buf.publish(logger);
+            logBuffers.remove(xid,buf);
+        }
+    }
+
+    // 页面写回之前调用：页面中可能有还在私有缓冲区中的修改，先把所有缓冲区写入日志，
+    // 再持久化到此时的日志末尾。超过大小时写入的缓冲区和刚被移出的缓冲区都只追加、没有持久化，
+    // 它们的日志也在这个末尾之前
+    void flushLogForWrite(long lsn){
+        for (LogBuffer buf:logBuffers.values()){
+            buf.publish(logger);
+        }
+        logger.flush(Math.max(lsn,logger.end()));
+    }
+
+    // 在写日志之前、持有modifyLock时调用，此时的日志末尾不晚于这条日志的起始位置
+    private void trackFirstLsn(long xid){
+        firstLsn.computeIfAbsent(xid,x -> logger.end());
+    }
+
+    // DataItem修改前后调用，修改页面和写日志需要在同一个临界区内
+    public void lockModify(){
+        modifyLock.readLock().lock();
+    }
+
+    public void unlockModify(){
+        modifyLock.readLock().unlock();
+    }
+
+    /**
+     * 模糊checkpoint：只在获取当前日志末尾时短暂阻塞修改，之后把此时所有的脏页写回，
+     * 再保存空闲空间表，最后把日志位置记录在第一页中。恢复时这个位置之前的日志不需要redo，
+     * 仍在进行的事务最早的日志之前的部分也不需要undo，这些日志段在第一页写回后删除。
+     */
+    void checkpoint(){
+        long lsn;
+        long undoLsn;
+        int pageNumber;
+        modifyLock.writeLock().lock();
+        try {
+            lsn=logger.end();
+            pageNumber=pc.getPageNumber();
+            firstLsn.keySet().removeIf(xid -> !tm.isActive(xid));
+            undoLsn=lsn;
+            for (long l:firstLsn.values()){
+                undoLsn=Math.min(undoLsn,l);
+            }
+        } finally {
+            modifyLock.writeLock().unlock();
+        }
+        // 异步提交的事务已经不算活跃，但状态可能还没写入XID文件，崩溃后仍会被当作活跃事务undo，
+        // 记录undoLsn、删除它们的日志之前先持久化这些状态
+        tm.sync();
+        logger.flush(lsn);
+        pc.flushAll();
+        freeSpaceMap.save(pageIndex,lsn,pageNumber);
+        PageOne.setCheckpoint(pageOne,lsn,pageNumber,undoLsn);
+        pc.flushPage(pageOne);
+        logger.purge(undoLsn);
+    }
+
+    // 启动周期性的checkpoint
+    void startCheckpointer(){
+        checkpointer=Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t=new Thread(r,"checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint,CHECKPOINT_INTERVAL,CHECKPOINT_INTERVAL,TimeUnit.SECONDS);
     }
 }
@@ -0,0 +1,32 @@
+package com.cheng.mydb.backend.dm;
+
+import com.cheng.mydb.backend.dm.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 事务私有的日志缓冲区，事务的update日志先积累在这里，提交、回滚或者超过大小时一次追加到日志中。
+ * 页面写回之前也会写入所有缓冲区，保证页面中的修改对应的日志先于页面持久化。
+ * 事务自己的线程追加，写回线程和提交的线程写入日志，所有方法都需要同步。
+ */
+class LogBuffer {
+    private List<byte[]> logs=new ArrayList<>();
+    private int size;
+
+    // 追加一条日志，返回缓冲区中日志的总字节数
+    synchronized int add(byte[] log){
+        logs.add(log);
+        size+=log.length;
+        return size;
+    }
+
+    // 把缓冲区中的日志一次写入logger，返回最后一条的LSN，缓冲区为空时返回0
+    synchronized long publish(Logger logger){
+        if (logs.isEmpty()) return 0;
+        long lsn=logger.log(logs);
+        logs=new ArrayList<>();
+        size=0;
+        return lsn;
+    }
+}
@@ -2,22 +2,28 @@ package com.cheng.mydb.backend.dm;
 
 import com.cheng.mydb.backend.common.SubArray;
 import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.dm.dataItem.ItemRedo;
 import com.cheng.mydb.backend.dm.logger.Logger;
 import com.cheng.mydb.backend.dm.page.Page;
 import com.cheng.mydb.backend.dm.page.PageX;
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
 import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.utils.BufferUtil;
 import com.cheng.mydb.backend.utils.Panic;
 import com.cheng.mydb.backend.utils.Parser;
+import com.cheng.mydb.common.Error;
 import com.google.common.primitives.Bytes;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 //　这里的log指的是LoggerImpl中提到的log的data
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT=0;
     private static final byte LOG_TYPE_UPDATE=1;
+    private static final byte LOG_TYPE_REDO=2;      // 逻辑redo，只有SUPER_XID会写，不需要undo
 
     private static final byte REDO=0;
     private static final byte UNDO=1;
@@ -33,170 +39,371 @@ public class Recover {
         long xid;
         int pgno;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        byte[] log;     // 修改的各个区间直接从日志中读取
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    // 分析阶段从日志头部直接解析出的信息，之后redo和undo都不再读日志
+    static class LogRecord{
+        byte[] log;
+        long lsn;       // 日志的末尾，和写日志时得到的LSN相同
+        long xid;
+        int pgno;
+    }
+
+    // 分析日志的结果：需要redo的日志按页分区，需要undo的日志按事务分组，都保持日志顺序
+    static class Analysis{
+        int maxPgno;
+        List<List<LogRecord>> redo=new ArrayList<>();
+        Map<Long, List<LogRecord>> undo=new HashMap<>();
+        Set<Integer> inserted=new HashSet<>();
+        boolean trustPageLsn;
+    }
+
+    /**
+     * 只扫描一遍日志：checkpoint之前的修改都已经写回数据源，只有checkpoint之后的日志需要redo；
+     * checkpoint时仍在进行的事务的日志都在undoFrom之后，undoFrom之前的日志不需要读。
+     * 同一页的日志由同一个线程按顺序redo，不同的页并行；未完成的事务之间互不相干，按事务并行undo。
+     * 页面LSN不小于日志LSN时，这条日志的修改已经在页面中，跳过。
+     * 内存映射的页面可能在写完日志、还没修改页面时被写回，它的页面LSN不可信，不跳过。
+     * 返回扫描到的插入日志涉及的页面，只有这些页面的空闲空间可能和checkpoint时不同。
+     */
+    public static Set<Integer> recover(TransactionManager tm, Logger lg, PageCache pc, long checkpoint, int checkpointPages, long undoFrom) {
         System.out.println("Recovering...");
 
-        lg.rewind();
-        int maxPgno = 0;
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
-            }
-        }
-        if(maxPgno == 0) {
-            maxPgno = 1;
-        }
-        pc.truncateByPgno(maxPgno);
-        System.out.println("Truncate to " + maxPgno + " pages.");
+        int threads=Math.max(1,Runtime.getRuntime().availableProcessors());
+        Analysis an=analyze(tm, lg, checkpoint, checkpointPages, undoFrom, threads);
+        an.trustPageLsn=pc.consistentWriteBack();
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
+        pc.truncateByPgno(an.maxPgno);
+        System.out.println("Truncate to " + an.maxPgno + " pages.");
 
-        undoTranscations(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
+        ExecutorService pool=Executors.newFixedThreadPool(threads,r -> {
+            Thread t=new Thread(r,"recover");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            redoTranscations(pool, pc, an);
+            System.out.println("Redo Transactions Over.");
+
+            undoTranscations(pool, tm, pc, an);
+            System.out.println("Undo Transactions Over.");
+        } finally {
+            pool.shutdown();
+        }
 
         System.out.println("Recovery Over.");
+        return an.inserted;
     }
 
-    // 执行redo，查找日志文件，顺序对所有已完成（committed 或 aborted）的插入和更新事务重做
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
+    // 从undoFrom开始扫描一遍日志，记录最大页号，并把需要redo和undo的日志分好组
+    private static Analysis analyze(TransactionManager tm, Logger lg, long checkpoint, int checkpointPages, long undoFrom, int partitions) {
+        Analysis an=new Analysis();
+        an.maxPgno=checkpointPages;
+        for (int i = 0; i < partitions; i++) {
+            an.redo.add(new ArrayList<>());
+        }
+        Map<Long, Boolean> active=new HashMap<>();     // 每个事务的状态只查一次
+
+        seek(lg, Math.min(checkpoint, undoFrom));
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
+            // 日志的末尾在checkpoint之后，就说明它是checkpoint之后写的
+            boolean afterCheckpoint = checkpoint <= 0 || lg.position() > checkpoint;
+
+            LogRecord rec = parseRecord(log);
+            rec.lsn = lg.position();
+            if(rec.pgno > an.maxPgno) {
+                an.maxPgno = rec.pgno;
+            }
             if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+                an.inserted.add(rec.pgno);
+            }
+            boolean isActive = active.computeIfAbsent(rec.xid, tm::isActive);
+            if(isActive) {
+                an.undo.computeIfAbsent(rec.xid, x -> new ArrayList<>()).add(rec);
+            } else if(afterCheckpoint) {
+                an.redo.get(rec.pgno % partitions).add(rec);
             }
         }
+        if(an.maxPgno == 0) {
+            an.maxPgno = 1;
+        }
+        return an;
     }
 
-    // 执行undo，查找日志文件，逆序对所有未完成（active）的插入和更新事务撤销
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+    // 执行redo，每个分区按日志顺序对所有已完成（committed 或 aborted）的插入和更新事务重做。
+    // 分区内记录每一页恢复开始时的页面LSN，LSN不大于它的日志已经在数据源中，跳过
+    private static void redoTranscations(ExecutorService pool, PageCache pc, Analysis an) {
+        List<Callable<Void>> tasks=new ArrayList<>();
+        for (List<LogRecord> partition : an.redo) {
+            if(partition.isEmpty()) continue;
+            tasks.add(() -> {
+                Map<Integer, Long> durableLsns = new HashMap<>();
+                for (LogRecord rec : partition) {
+                    if(an.trustPageLsn) {
+                        long durableLsn = durableLsns.computeIfAbsent(rec.pgno, pgno -> pageLsn(pc, pgno));
+                        if(durableLsn >= rec.lsn) continue;
                     }
-                    logCache.get(xid).add(log);
+                    redo(pc, rec);
                 }
+                return null;
+            });
+        }
+        invokeAll(pool, tasks);
+    }
+
+    // 第一次redo这一页之前读取，这时页面中还只有数据源中的内容
+    private static long pageLsn(PageCache pc, int pgno) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            return PageX.getPageLsn(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static void redo(PageCache pc, LogRecord rec) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(rec.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            // 逻辑redo不能重复执行，恢复期间写回的页面也不能是执行了一半的状态
+            pg.beginModify();
+            try {
+                redo(pg, rec);
+            } finally {
+                pg.endModify();
             }
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static void redo(Page pg, LogRecord rec) {
+        PageX.setPageLsn(pg, rec.lsn);
+        if(isInsertLog(rec.log)) {
+            InsertLogInfo li = parseInsertLog(rec.log);
+            PageX.recoverInsert(pg, li.raw, li.offset);
+        } else if(isRedoLog(rec.log)) {
+            applyRedoLog(pg, parseUpdateLog(rec.log));
+        } else {
+            applyUpdateLog(pg, parseUpdateLog(rec.log), REDO);
         }
+    }
+
+    // 没有checkpoint时从第一个log开始
+    private static void seek(Logger lg, long checkpoint) {
+        if(checkpoint > 0) {
+            lg.seek(checkpoint);
+        } else {
+            lg.rewind();
+        }
+    }
 
-        // 对所有active log进行倒序undo
-        for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
+    // 执行undo，每个未完成（active）的事务逆序撤销自己的插入和更新，撤销完再统一标记为aborted
+    private static void undoTranscations(ExecutorService pool, TransactionManager tm, PageCache pc, Analysis an) {
+        List<Callable<Void>> tasks=new ArrayList<>();
+        for (List<LogRecord> logs : an.undo.values()) {
+            tasks.add(() -> {
+                for (int i = logs.size()-1; i >= 0; i --) {
+                    byte[] log = logs.get(i).log;
+                    if(isInsertLog(log)) {
+                        doInsertLog(pc, log, UNDO);
+                    } else {
+                        doUpdateLog(pc, log, UNDO);
+                    }
                 }
+                return null;
+            });
+        }
+        invokeAll(pool, tasks);
+        for (long xid : an.undo.keySet()) {
+            tm.abort(xid);
+        }
+    }
+
+    // 执行全部任务并等待完成，任何一个任务出错都无法继续恢复
+    private static void invokeAll(ExecutorService pool, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
             }
-            tm.abort(entry.getKey());
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
         }
     }
 
+    // 只解析日志头部的xid和页号，不拷贝数据
+    private static LogRecord parseRecord(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        LogRecord rec = new LogRecord();
+        rec.log = log;
+        rec.xid = buf.getLong(OFFSET_XID);
+        if(isInsertLog(log)) {
+            rec.pgno = buf.getInt(OFFSET_INSERT_PGNO);
+        } else {
+            rec.pgno = (int)(buf.getLong(OFFSET_UPDATE_UID) >>> 32);
+        }
+        return rec;
+    }
+
     private static boolean isInsertLog(byte[] log) {
         return log[0] == LOG_TYPE_INSERT;
     }
 
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
-    private static final int OFFSET_TYPE = 0;                           // 0字节      TYPE
-    private static final int OFFSET_XID = OFFSET_TYPE+1;                // 1-8字节    XID
-    private static final int OFFSET_UPDATE_UID = OFFSET_XID+8;          // 9-16字节   UID
-    private static final int OFFSET_UPDATE_RAW = OFFSET_UPDATE_UID+8;   // 17字节开始  RAW
+    private static boolean isRedoLog(byte[] log) {
+        return log[0] == LOG_TYPE_REDO;
+    }
+
+    // [LogType] [XID] [UID] [Range1] [Range2] ... [RangeN]
+    // Range: [Offset] [Length] [OldRaw] [NewRaw]，只记录DataItem中发生变化的字节，Offset是在DataItem内的偏移
+    private static final int OFFSET_TYPE = 0;                               // 0字节      TYPE
+    private static final int OFFSET_XID = OFFSET_TYPE+1;                    // 1-8字节    XID
+    private static final int OFFSET_UPDATE_UID = OFFSET_XID+8;              // 9-16字节   UID
+    private static final int OFFSET_UPDATE_RANGES = OFFSET_UPDATE_UID+8;    // 17字节开始  RANGES
+    private static final int RANGE_HEADER = 4;
+    private static final int MERGE_GAP = RANGE_HEADER/2;    // 两段变化之间不超过这么多字节时合并，比多一个Range头更短
 
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Bytes(xid);
-        byte[] uidRaw = Parser.long2Bytes(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        List<int[]> ranges = diff(oldRaw, raw);
+        int size = OFFSET_UPDATE_RANGES;
+        for (int[] r : ranges) {
+            size += RANGE_HEADER + (r[1]-r[0])*2;
+        }
+
+        ByteBuffer log = ByteBuffer.allocate(size);
+        log.put(LOG_TYPE_UPDATE);
+        log.putLong(xid);
+        log.putLong(di.getUid());
+        for (int[] r : ranges) {
+            int length = r[1]-r[0];
+            log.putShort((short) r[0]);
+            log.putShort((short) length);
+            log.put(oldRaw, r[0], length);
+            log.put(BufferUtil.copyOfRange(raw.raw, raw.start+r[0], raw.start+r[1]));
+        }
+        return log.array();
+    }
+
+    // 比较修改前后的DataItem，返回发生变化的[start,end)区间
+    private static List<int[]> diff(byte[] oldRaw, SubArray raw) {
+        List<int[]> ranges = new ArrayList<>();
+        int n = oldRaw.length;
+        int i = 0;
+        while(i < n) {
+            if(oldRaw[i] == raw.raw.get(raw.start+i)) {
+                i ++;
+                continue;
+            }
+            int start = i;
+            int end = i+1;
+            for (int j = i+1; j < n && j-end <= MERGE_GAP; j ++) {
+                if(oldRaw[j] != raw.raw.get(raw.start+j)) {
+                    end = j+1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        return ranges;
     }
 
     // 依据log生成UpdateLogInfo对象
     private static UpdateLogInfo parseUpdateLog(byte[] log){
         UpdateLogInfo li=new UpdateLogInfo();
-        li.xid= Parser.parseLong(Arrays.copyOfRange(log,OFFSET_XID,OFFSET_UPDATE_UID));
+        ByteBuffer buf=ByteBuffer.wrap(log);
+        li.xid= buf.getLong(OFFSET_XID);
         //　完全不知道为什么要加这个UID，不能用PGNO和OFFSET代替吗
-        long uid= Parser.parseLong(Arrays.copyOfRange(log,OFFSET_UPDATE_UID,OFFSET_UPDATE_RAW));
+        long uid= buf.getLong(OFFSET_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OFFSET_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OFFSET_UPDATE_RAW, OFFSET_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OFFSET_UPDATE_RAW+length, OFFSET_UPDATE_RAW+length*2);
+        li.log = log;
         return li;
     }
 
+    // 把每个Range的NewRaw（redo）或者OldRaw（undo）写回DataItem
+    private static void applyUpdateLog(Page pg, UpdateLogInfo li, int flag) {
+        ByteBuffer buf = ByteBuffer.wrap(li.log);
+        int pos = OFFSET_UPDATE_RANGES;
+        while(pos < li.log.length) {
+            short offset = buf.getShort(pos);
+            short length = buf.getShort(pos+2);
+            int from = pos+RANGE_HEADER;
+            if(flag == REDO) {
+                from += length;
+            }
+            PageX.recoverUpdate(pg, li.log, from, length, li.offset+offset);
+            pos += RANGE_HEADER+length*2;
+        }
+    }
+
+    // [LogType] [XID] [UID] [Steps]
+    // Steps见ItemRedo，头部和update日志相同
+    public static byte[] redoLog(long xid, DataItem di, ItemRedo redo) {
+        byte[] steps = redo.steps();
+        ByteBuffer log = ByteBuffer.allocate(OFFSET_UPDATE_RANGES+steps.length);
+        log.put(LOG_TYPE_REDO);
+        log.putLong(xid);
+        log.putLong(di.getUid());
+        log.put(steps);
+        return log.array();
+    }
+
+    // 按顺序重放逻辑redo中的移动和写入
+    private static void applyRedoLog(Page pg, UpdateLogInfo li) {
+        ByteBuffer buf = ByteBuffer.wrap(li.log);
+        ByteBuffer data = pg.getData();
+        int base = li.offset+DataItem.OFFSET_DATA;
+        int pos = OFFSET_UPDATE_RANGES;
+        while(pos < li.log.length) {
+            byte op = buf.get(pos);
+            if(op == ItemRedo.OP_MOVE) {
+                int from = buf.getShort(pos+1);
+                int to = buf.getShort(pos+3);
+                int length = buf.getShort(pos+5);
+                BufferUtil.copy(data, base+from, data, base+to, length);
+                pos += 7;
+            } else {
+                int offset = buf.getShort(pos+1);
+                int length = buf.getShort(pos+3);
+                BufferUtil.put(data, base+offset, li.log, pos+5, length);
+                pos += 5+length;
+            }
+        }
+        pg.setDirty(true);
+    }
+
     // redo或者undo一个更新事务
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
+        if(isRedoLog(log)) {
+            // 逻辑redo日志没有前相，写它的事务不会处于active状态
+            Panic.panic(Error.BadLogFileException);
         }
+        UpdateLogInfo xi = parseUpdateLog(log);
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(xi.pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
+        pg.beginModify();
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            applyUpdateLog(pg, xi, flag);
         } finally {
+            pg.endModify();
             pg.release();
         }
     }
@@ -217,9 +424,10 @@ public class Recover {
     // 依据log生成InsertLogInfo对象
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OFFSET_XID, OFFSET_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OFFSET_INSERT_PGNO, OFFSET_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OFFSET_INSERT_OFFSET, OFFSET_INSERT_RAW));
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        li.xid = buf.getLong(OFFSET_XID);
+        li.pgno = buf.getInt(OFFSET_INSERT_PGNO);
+        li.offset = buf.getShort(OFFSET_INSERT_OFFSET);
         li.raw = Arrays.copyOfRange(log, OFFSET_INSERT_RAW, log.length);
         return li;
     }
@@ -233,12 +441,17 @@ public class Recover {
         } catch(Exception e) {
             Panic.panic(e);
         }
+        // 并行undo时不同事务可能插入过同一页，更新FSO需要上页锁
+        pg.lock();
+        pg.beginModify();
         try {
             if(flag == UNDO) {
 //                DataItem.setDataItemRawInvalid(li.raw);
             }
             PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
+            pg.endModify();
+            pg.unlock();
             pg.release();
         }
     }
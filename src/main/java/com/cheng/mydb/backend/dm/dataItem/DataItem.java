@@ -8,19 +8,24 @@ import com.cheng.mydb.backend.utils.Parser;
 import com.cheng.mydb.backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 public interface DataItem {
     byte OFFSET_VALID=0;
     byte OFFSET_SIZE=1;
     byte OFFSET_DATA=3;
+    // ValidFlag中的标记位
+    byte FLAG_INVALID=1;        // 非法
+    byte FLAG_VERSIONED=2;      // VM的Entry，freeze时需要扫描
 
     public boolean isValid();
+    void setInvalid();      // 标记为非法，需要在before()和after()之间调用
     SubArray data();
 
     void before();
     void unBefore();
     void after(long xid);
+    void after(long xid, ItemRedo redo);    // 只记录逻辑redo，不能undo
     void release();
 
     void lock();
@@ -34,20 +39,24 @@ public interface DataItem {
     SubArray getRaw();
 
     public static byte[] wrapDataItemRaw(byte[] raw){
-        byte[] valid=new byte[1];
+        return wrapDataItemRaw(raw,(byte)0);
+    }
+
+    public static byte[] wrapDataItemRaw(byte[] raw,byte flags){
+        byte[] valid=new byte[]{flags};
         byte[] size=Parser.short2Bytes((short) raw.length);
         return Bytes.concat(valid,size,raw);
     }
 
     public static DataItem parseDataItem(Page page, short offset, DataManagerImpl dm){
-        byte[] raw=page.getData();
-        short size= Parser.parseShort(Arrays.copyOfRange(raw,offset+OFFSET_SIZE,offset+OFFSET_DATA));
+        ByteBuffer raw=page.getData();
+        short size=raw.getShort(offset+OFFSET_SIZE);
         short length=(short)(size+OFFSET_DATA);
         long uid= Types.addressToUid(page.getPageNumber(),offset);
         return new DataItemImpl(new SubArray(raw,offset,offset+length),new byte[length],page,uid,dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw){
-        raw[OFFSET_VALID]=(byte)1;
+        raw[OFFSET_VALID]|=FLAG_INVALID;
     }
 }
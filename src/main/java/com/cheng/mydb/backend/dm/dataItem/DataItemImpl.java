@@ -5,6 +5,7 @@ import com.cheng.mydb.backend.dm.DataManager;
 import com.cheng.mydb.backend.dm.DataManagerImpl;
 import com.cheng.mydb.backend.dm.page.Page;
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import com.cheng.mydb.backend.utils.BufferUtil;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -15,7 +16,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * DataItem 是 DM 层向上层提供的数据抽象。上层模块通过地址，向 DM 请求到对应的 DataItem，再获取到其中的数据。
  * dataItem中raw 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，最低位为0时合法，为1时非法；FLAG_VERSIONED标记VM的Entry
  * DataSize  2字节，标识Data的长度
  */
 public class DataItemImpl implements DataItem {
@@ -39,7 +40,12 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid(){
-        return raw.raw[raw.start+OFFSET_VALID]==(byte)0;
+        return (raw.raw.get(raw.start+OFFSET_VALID)&FLAG_INVALID)==0;
+    }
+
+    // 在before()和after()之间调用
+    public void setInvalid(){
+        raw.raw.put(raw.start+OFFSET_VALID,(byte)(raw.raw.get(raw.start+OFFSET_VALID)|FLAG_INVALID));
     }
 
     public SubArray data() {
@@ -53,17 +59,35 @@ public class DataItemImpl implements DataItem {
      */
     public void before() {
         wlock.lock();
+        dm.lockModify();
+        page.beginModify();
         page.setDirty(true);
-        System.arraycopy(raw.raw,raw.start,oldRaw,0,oldRaw.length);
+        BufferUtil.get(raw.raw,raw.start,oldRaw);
     }
 
     public void unBefore() {
-        System.arraycopy(oldRaw,0,raw.raw,raw.start,oldRaw.length);
+        BufferUtil.put(raw.raw,raw.start,oldRaw);
+        page.setDirty(true);
+        page.endModify();
+        dm.unlockModify();
         wlock.unlock();
     }
 
+    // 修改完成后再次标记脏页，后台写回时复制到的不完整内容会被再次写回
     public void after(long xid) {
         dm.logDataItem(xid,this);
+        page.setDirty(true);
+        page.endModify();
+        dm.unlockModify();
+        wlock.unlock();
+    }
+
+    // 修改由redo中的步骤描述，日志中不需要前相和整个后相
+    public void after(long xid, ItemRedo redo) {
+        dm.logDataItem(xid,this,redo);
+        page.setDirty(true);
+        page.endModify();
+        dm.unlockModify();
         wlock.unlock();
     }
 
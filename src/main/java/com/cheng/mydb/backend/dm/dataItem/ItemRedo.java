@@ -0,0 +1,61 @@
+package com.cheng.mydb.backend.dm.dataItem;
+
+import com.cheng.mydb.backend.common.SubArray;
+import com.cheng.mydb.backend.utils.BufferUtil;
+import com.cheng.mydb.backend.utils.Panic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 一次修改的逻辑redo：上层按顺序记下对Data做的移动和写入，日志中只有这些步骤和写入的字节，
+ * 没有修改前后的整个DataItem。恢复时按顺序重放。
+ * 没有前相，只能用于不需要undo的修改，也就是SUPER_XID的修改，比如B+树节点的插入和分裂。
+ * 步骤的格式：
+ * [OP_MOVE] [From] [To] [Length]
+ * [OP_WRITE] [Offset] [Length] [Raw]
+ * 偏移都是相对于Data的开头，均为2字节
+ */
+public class ItemRedo {
+    public static final byte OP_MOVE=0;
+    public static final byte OP_WRITE=1;
+
+    private SubArray data;
+    private ByteArrayOutputStream bytes;
+    private DataOutputStream out;
+
+    public ItemRedo(SubArray data) {
+        this.data=data;
+        this.bytes=new ByteArrayOutputStream();
+        this.out=new DataOutputStream(bytes);
+    }
+
+    // 记录一次移动：Data中[from,from+length)已经被移动到to处
+    public void moved(int from,int to,int length){
+        try {
+            out.writeByte(OP_MOVE);
+            out.writeShort(from);
+            out.writeShort(to);
+            out.writeShort(length);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 记录一次写入：Data中[offset,offset+length)已经写入新的内容，在调用时复制这些字节
+    public void written(int offset,int length){
+        try {
+            out.writeByte(OP_WRITE);
+            out.writeShort(offset);
+            out.writeShort(length);
+            out.write(BufferUtil.copyOfRange(data.raw,data.start+offset,data.start+offset+length));
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public byte[] steps(){
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+package com.cheng.mydb.backend.dm.logger;
+
+import com.cheng.mydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 顺序读日志用的缓冲区，每次从段文件中读入一大块，日志直接从缓冲区中切片返回，不再逐条读文件。
+ * 缓冲区中是[windowStart,windowStart+window.limit())内的日志，日志只会追加，读入后的内容不会变化，
+ * 只有截断和删除段文件时需要丢弃。
+ * 返回的切片在下一次读取之前有效，需要保留的内容由调用者复制。
+ */
+class LogReader {
+    private static final int CHUNK=1<<20;   // 每次至少读入1M
+
+    private LoggerImpl logger;
+    private ByteBuffer window;
+    private int segment=-1;     // 缓冲区中的内容所在的段
+    private long windowStart;   // 缓冲区开头在段内的偏移
+    private CRC32 crc=new CRC32();
+
+    LogReader(LoggerImpl logger) {
+        this.logger=logger;
+        this.window=ByteBuffer.allocateDirect(CHUNK);
+        window.limit(0);
+    }
+
+    /**
+     * 读取起始位置为lsn的一条日志，返回[Size] [CheckSum] [LSN] [Data]的切片，
+     * 日志不完整、校验失败或者LSN对不上时返回null
+     */
+    ByteBuffer read(long lsn){
+        int seg=LoggerImpl.segmentOf(lsn);
+        long offset=lsn-LoggerImpl.segmentStart(seg);
+        if (!fill(seg,offset,LoggerImpl.OFFSET_DATA)){
+            return null;
+        }
+        int pos=(int)(offset-windowStart);
+        int size=window.getInt(pos+LoggerImpl.OFFSET_SIZE);
+        if (size<0 || size>LoggerImpl.SEGMENT_SIZE){
+            return null;
+        }
+        int length=LoggerImpl.OFFSET_DATA+size;
+        if (!fill(seg,offset,length)){
+            return null;
+        }
+        pos=(int)(offset-windowStart);
+
+        ByteBuffer log=window.duplicate();
+        log.limit(pos+length);
+        log.position(pos+LoggerImpl.OFFSET_LSN);
+        crc.reset();
+        crc.update(log);
+        if ((int)crc.getValue()!=window.getInt(pos+LoggerImpl.OFFSET_CheckSum)
+                || window.getLong(pos+LoggerImpl.OFFSET_LSN)!=lsn){
+            return null;
+        }
+        log.position(pos);
+        return log.slice();
+    }
+
+    // 截断或者删除段文件之后丢弃缓冲区中的内容
+    void reset(){
+        segment=-1;
+        window.limit(0);
+    }
+
+    // 保证段内[offset,offset+length)在缓冲区中，文件中没有这么多内容时返回false
+    private boolean fill(int seg,long offset,int length){
+        if (seg==segment && offset>=windowStart && offset+length<=windowStart+window.limit()){
+            return true;
+        }
+        long segLength=logger.segmentLength(seg);
+        if (offset+length>segLength){
+            return false;
+        }
+        if (window.capacity()<length){
+            window=ByteBuffer.allocateDirect(length);
+        }
+        int n=(int)Math.min(window.capacity(),segLength-offset);
+        FileChannel fc=logger.channel(seg);
+        window.clear();
+        window.limit(n);
+        try {
+            while(window.hasRemaining()){
+                if (fc.read(window,offset+window.position())<0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        window.flip();
+        segment=seg;
+        windowStart=offset;
+        return window.limit()>=length;
+    }
+}
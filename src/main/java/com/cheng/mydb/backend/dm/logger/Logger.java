@@ -5,24 +5,33 @@ import com.cheng.mydb.backend.utils.Parser;
 import com.cheng.mydb.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 public interface Logger {
 
-    public static final String LOG_SUFFIX=".log";
+    public static final String LOG_SUFFIX=".log";   // 段文件为.log.0、.log.1……
 
-    void log(byte[] data);                      // 生成log并写入日志文件
-    void truncate(long x) throws Exception;     // 在指定位置截断文件
+    long log(byte[] data);                      // 生成log并追加到日志，返回LSN
+    long log(List<byte[]> data);                // 一次追加多条log，返回最后一条的LSN
+    void flush(long lsn);                       // 等待LSN之前的日志全部持久化
+    void truncate(long x) throws Exception;     // 在指定位置截断日志
+    void purge(long lsn);                       // 删除lsn所在段之前的段文件
     byte[] next();                              // 获取下一个log的data
     void rewind();                              // 指针重新指向第一个log的位置
+    void seek(long position);                   // 指针指向position处的log
+    long position();                            // 当前指针的位置，next之后即刚读出的log的末尾
+    long end();                                 // 日志末尾的位置（包括还没持久化的日志），即下一个log写入的位置
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
+        if(LoggerImpl.firstSegment(path) >= 0) {
+            Panic.panic(Error.FileExistsException);
+        }
+        File f = LoggerImpl.segmentFile(path, 0);
         try {
             if(!f.createNewFile()) {
                 Panic.panic(Error.FileExistsException);
@@ -34,17 +43,9 @@ public interface Logger {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Bytes(0));
-        try {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            FileChannel fc = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.wrap(Parser.int2Bytes(LoggerImpl.MAGIC));
             fc.position(0);
             fc.write(buf);
             fc.force(false);
@@ -52,29 +53,28 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path, 0);
+        lg.start(LoggerImpl.HEADER_SIZE);
+        return lg;
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
+        return open(path, 0);
+    }
+
+    // scanFrom之前的日志已经确认持久化（比如checkpoint的位置），打开时只检查之后的日志
+    public static Logger open(String path, long scanFrom) {
+        int first = LoggerImpl.firstSegment(path);
+        if(first < 0) {
             Panic.panic(Error.FileNotExistsException);
         }
+        File f = LoggerImpl.segmentFile(path, first);
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
+        LoggerImpl lg = new LoggerImpl(path, first);
+        lg.init(scanFrom);
 
         return lg;
     }
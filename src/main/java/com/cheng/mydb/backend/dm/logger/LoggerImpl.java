@@ -2,232 +2,455 @@ package com.cheng.mydb.backend.dm.logger;
 
 import com.cheng.mydb.backend.utils.Panic;
 import com.cheng.mydb.backend.utils.Parser;
-import com.cheng.mydb.common.Error;
-import com.google.common.primitives.Bytes;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * 管理日志文件读写
  *
- * 日志文件标准格式为：
- * [XCheckSum] [Log1] [Log2] ... [LogN] [BadTail]
- * XCheckSum 为后续所有日志计算的CheckSum，4字节int类型
+ * 日志由多个固定大小的段文件组成：path.log.0、path.log.1……，第i段保存LSN在[i*SEGMENT_SIZE,(i+1)*SEGMENT_SIZE)内的日志。
+ * 每个段文件的标准格式为：
+ * [Magic] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic 为4字节int，标识日志文件的格式
  *
  * 每条正确日志的格式为：
- * [Size] [CheckSum] [Data]
+ * [Size] [CheckSum] [LSN] [Data]
  * Size 4字节int 标识此Log中Data长度
- * CheckSum 4字节int
+ * CheckSum 4字节int，对[LSN] [Data]计算的CRC32
+ * LSN 8字节long，这条日志的起始位置，截断后残留的旧日志LSN对不上，不会被误认为正确日志
  * Data: [LogType] [XID] [UID] [OldRaw] [NewRaw](Update) 或者 [LogType] [XID] [Pgno] [Offset] [Raw](Insert)
+ *
+ * 日志不跨段，当前段放不下时从下一段的第一条日志开始。写入下一段之前先fsync当前段，
+ * 所以下一段的第一条日志正确时，当前段中之后的部分一定是段末尾的空余，而不是损坏的日志。
+ * 每条日志单独校验，打开时从checkpoint开始向后扫描，第一条校验失败的日志及之后的部分就是BadTail。
+ * checkpoint之后，恢复不再需要的段文件通过purge()删除，磁盘占用和恢复时间都不随运行时间增长。
+ *
+ * 组提交：log()只把日志追加到内存中的缓冲区并返回LSN（这条日志结束的位置），
+ * 由后台的log-flusher线程把缓冲区中积累的一批日志一次写入文件，整批只fsync一次。
+ * 需要持久化的调用者通过flush(lsn)等待，并发的调用者共享同一次fsync。
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED=13331;
+    static final int MAGIC=0x4D4C4F47;                          // 日志文件格式标识
+    static final long SEGMENT_SIZE=1<<26;                       // 每个段文件64M
+    static final int HEADER_SIZE=4;                             // 段文件开头的Magic
 
-    private static final byte OFFSET_SIZE=0;                     // 0-3字节为Size
-    private static final byte OFFSET_CheckSum=OFFSET_SIZE+4;     // 4-7字节为CheckSum
-    private static final byte OFFSET_DATA=OFFSET_CheckSum+4;     // 8字节开始为日志数据
+    static final byte OFFSET_SIZE=0;                     // 0-3字节为Size
+    static final byte OFFSET_CheckSum=OFFSET_SIZE+4;     // 4-7字节为CheckSum
+    static final byte OFFSET_LSN=OFFSET_CheckSum+4;      // 8-15字节为LSN
+    static final byte OFFSET_DATA=OFFSET_LSN+8;          // 16字节开始为日志数据
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock lock;
+    // 一条还没写入文件的日志
+    private static class PendingLog {
+        final long lsn;
+        final byte[] log;
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int XCheckSum;
+        PendingLog(long lsn, byte[] log) {
+            this.lsn = lsn;
+            this.log = log;
+        }
+    }
+
+    private String path;
+    private ConcurrentHashMap<Integer,RandomAccessFile> segments;   // 已经打开的段文件
+    private volatile int firstSegment;                              // 最早的还没删除的段
+    private Lock lock;      // 保护日志缓冲区和LSN
+    private Lock readLock;  // 保护读日志的position，读写都是带位置的IO，读日志不会阻塞追加
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc){
-        this.file=raf;
-        this.fc=fc;
+    private long position;  // 当前日志指针的位置
+    private LogReader reader;
+
+    private List<PendingLog> buffer;        // 还没写入文件的日志
+    private long appendLsn;                 // 已追加的日志的末尾，包括缓冲区中的日志
+    private long flushedLsn;                // 已经持久化的日志的末尾
+    private Condition appended;             // 缓冲区中有新的日志，或者要关闭
+    private Condition flushed;              // flushedLsn前进
+    private boolean closing;
+    private Thread flusher;
+
+    LoggerImpl(String path, int firstSegment){
+        this.path=path;
+        this.firstSegment=firstSegment;
+        segments=new ConcurrentHashMap<>();
         lock=new ReentrantLock();
+        readLock=new ReentrantLock();
+        reader=new LogReader(this);
+        buffer=new ArrayList<>();
+        appended=lock.newCondition();
+        flushed=lock.newCondition();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int XCheckSum) {
-        this.file = raf;
-        this.fc = fc;
-        this.XCheckSum = XCheckSum;
-        lock = new ReentrantLock();
+    static File segmentFile(String path,int segment){
+        return new File(path+LOG_SUFFIX+"."+segment);
     }
 
-    // 在打开一个已存在log文件时候执行
-    void init(){
-        long size=0;
-        try {
-            size=file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if (size<4){
-            Panic.panic(Error.BadLogFileException);
-        }
-
-        ByteBuffer raw=ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int XCheckSum=Parser.parseInt(raw.array());
-        this.fileSize=size;
-        this.XCheckSum=XCheckSum;
-
-        checkAndRemoveTail();
+    static int segmentOf(long lsn){
+        return (int)(lsn/SEGMENT_SIZE);
     }
 
+    static long segmentStart(int segment){
+        return segment*SEGMENT_SIZE;
+    }
 
-    // 在打开一个日志文件时,检查XCheckSum并移除bad tail
-    private void checkAndRemoveTail(){
-        rewind();
-
-        int xCheck=0;
-        while(true){
-            byte[] log = internNext();
-            if (log==null) break;
-            xCheck=calCheckSum(xCheck,log);
-        }
+    // lsn落在段开头的Magic中时，移到这一段的第一条日志
+    private static long skipHeader(long lsn){
+        long start=segmentStart(segmentOf(lsn));
+        return Math.max(lsn,start+HEADER_SIZE);
+    }
 
-        if (xCheck!=XCheckSum){
-            Panic.panic(Error.BadLogFileException);
+    // 现有的第一个段文件的编号，没有段文件时返回-1
+    static int firstSegment(String path){
+        File f=new File(path+LOG_SUFFIX);
+        File dir=f.getAbsoluteFile().getParentFile();
+        String prefix=f.getName()+".";
+        int first=-1;
+        String[] names=dir.list();
+        if (names==null) return -1;
+        for (String name:names){
+            if (!name.startsWith(prefix)) continue;
+            try {
+                int segment=Integer.parseInt(name.substring(prefix.length()));
+                if (first<0 || segment<first) first=segment;
+            } catch (NumberFormatException e) {
+                // 不是段文件
+            }
         }
+        return first;
+    }
 
-        try {
-            // 截断文件到正常日志的末尾
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+    // 段文件的FileChannel，不存在时创建并写入Magic
+    FileChannel channel(int segment){
+        RandomAccessFile raf=segments.get(segment);
+        if (raf!=null) return raf.getChannel();
+        synchronized (segments){
+            raf=segments.get(segment);
+            if (raf!=null) return raf.getChannel();
+            try {
+                File f=segmentFile(path,segment);
+                boolean created=!f.exists();
+                raf=new RandomAccessFile(f,"rw");
+                if (created){
+                    writeFully(raf.getChannel(),ByteBuffer.wrap(Parser.int2Bytes(MAGIC)),0);
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            segments.put(segment,raf);
+            return raf.getChannel();
         }
+    }
 
+    long segmentLength(int segment){
+        if (!segmentFile(path,segment).exists()) return 0;
         try {
-            file.seek(position);
+            return channel(segment).size();
         } catch (IOException e) {
             Panic.panic(e);
+            return 0;
         }
-        rewind();
     }
 
-    // 计算log的CheckSum
-    private int calCheckSum(int xCheck,byte[] data){
-        for (byte b:data){
-            xCheck=xCheck*SEED+b;
-        }
-        return xCheck;
+    // 从当前的位置开始追加日志，启动后台刷盘线程
+    void start(long end){
+        appendLsn=flushedLsn=end;
+        flusher=new Thread(this::flushLoop,"log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
-    // 从文件中获取下一个log
-    private byte[] internNext(){
-        if (position+OFFSET_DATA>=fileSize){
-            return null;
+    // 在打开已存在的日志时执行，scanFrom之前的日志已经确认持久化，只需要检查之后的部分
+    void init(long scanFrom){
+        seek(scanFrom);
+        readLock.lock();
+        try {
+            while(internNext()!=null);
+        } finally {
+            readLock.unlock();
         }
-        // 读取size
-        ByteBuffer temp=ByteBuffer.allocate(4);
+        long end=position;
         try {
-            fc.position(position);
-            fc.read(temp);
-        } catch (IOException e) {
+            // 截断到正常日志的末尾
+            truncate(end);
+        } catch (Exception e) {
             Panic.panic(e);
         }
+        rewind();
+        start(end);
+    }
+
+    // 计算log的CheckSum，包括LSN和Data
+    private static int calCheckSum(byte[] log,int offset,int length){
+        CRC32 crc=new CRC32();
+        crc.update(log,offset,length);
+        return (int)crc.getValue();
+    }
 
-        int size= Parser.parseInt(temp.array());
-        if (position+OFFSET_DATA+size>fileSize){
-            return null;
+    // 从缓冲区中获取下一个log的切片，当前段已经没有日志时，如果下一段的第一条日志正确就继续读下一段。
+    // 调用者需要持有readLock
+    private ByteBuffer internNext(){
+        position=skipHeader(position);
+        ByteBuffer log=reader.read(position);
+        if (log==null){
+            int next=segmentOf(position)+1;
+            long start=segmentStart(next)+HEADER_SIZE;
+            if (!segmentFile(path,next).exists()) return null;
+            log=reader.read(start);
+            if (log==null) return null;
+            position=start;
         }
+        position+=log.remaining();
+        return log;
+    }
 
-        // 读取整个Log
-        ByteBuffer buf=ByteBuffer.allocate(OFFSET_DATA+size);
-        try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    private static void writeFully(FileChannel fc,ByteBuffer buf,long position) throws IOException {
+        while(buf.hasRemaining()){
+            fc.write(buf,position+buf.position());
         }
+    }
 
-        byte[] log=buf.array();
-        int CheckSum1=calCheckSum(0, Arrays.copyOfRange(log,OFFSET_DATA,log.length));
-        int CheckSum2=Parser.parseInt(Arrays.copyOfRange(log,OFFSET_CheckSum,OFFSET_DATA));
-        if (CheckSum1!=CheckSum2){
-            return null;
+    // 生成log并追加到缓冲区，返回这条日志结束处的LSN，返回时日志不一定已经持久化
+    public long log(byte[] data) {
+        int length=OFFSET_DATA+data.length;
+        if (length>SEGMENT_SIZE-HEADER_SIZE){
+            Panic.panic(new IllegalArgumentException("Log too large!"));
+        }
+        lock.lock();
+        try{
+            append(data);
+            appended.signal();
+            return appendLsn;
+        } finally {
+            lock.unlock();
         }
-        position+=log.length;
-        return log;
     }
 
-    // 生成log并写入日志文件
-    public void log(byte[] data) {
-        byte[] log=wraplog(data);
-        ByteBuffer buf=ByteBuffer.wrap(log);
+    // 在一次加锁中按顺序追加多条log，返回最后一条日志结束处的LSN
+    public long log(List<byte[]> data) {
+        for (byte[] d:data){
+            if (OFFSET_DATA+d.length>SEGMENT_SIZE-HEADER_SIZE){
+                Panic.panic(new IllegalArgumentException("Log too large!"));
+            }
+        }
         lock.lock();
         try{
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            for (byte[] d:data){
+                append(d);
+            }
+            appended.signal();
+            return appendLsn;
         } finally {
             lock.unlock();
         }
-        updateXCheckSum(log);
     }
 
-    // 更新XCheckSum
-    private void updateXCheckSum(byte[] log) {
-        int XCheckSum=calCheckSum(this.XCheckSum,log);
-        ByteBuffer buf=ByteBuffer.wrap(Parser.int2Bytes(XCheckSum));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 持有lock时调用
+    private void append(byte[] data){
+        int length=OFFSET_DATA+data.length;
+        // 当前段放不下时从下一段开始，段的开头是Magic
+        if (appendLsn+length>segmentStart(segmentOf(appendLsn)+1)){
+            appendLsn=segmentStart(segmentOf(appendLsn)+1);
         }
+        appendLsn=skipHeader(appendLsn);
+        buffer.add(new PendingLog(appendLsn,wraplog(data,appendLsn)));
+        appendLsn+=length;
+    }
 
+    // 等待lsn之前的日志全部持久化
+    public void flush(long lsn) {
+        lock.lock();
+        try {
+            while(flushedLsn<lsn){
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
+    // 后台刷盘：取出缓冲区中的一批日志，同一段中连续的日志合并成一次写，
+    // 进入下一段之前先fsync当前段，最后fsync一次。写文件期间新的日志继续追加到缓冲区，成为下一批
+    private void flushLoop(){
+        while(true){
+            List<PendingLog> batch;
+            long end;
+            lock.lock();
+            try {
+                while(buffer.isEmpty() && !closing){
+                    appended.awaitUninterruptibly();
+                }
+                if (buffer.isEmpty()) return;
+                batch=buffer;
+                buffer=new ArrayList<>();
+                end=appendLsn;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                int i=0;
+                int segment=-1;
+                while(i<batch.size()){
+                    long start=batch.get(i).lsn;
+                    int j=i;
+                    int length=0;
+                    while(j<batch.size() && batch.get(j).lsn==start+length){
+                        length+=batch.get(j).log.length;
+                        j++;
+                    }
+                    ByteBuffer run=ByteBuffer.allocate(length);
+                    for (int k=i;k<j;k++){
+                        run.put(batch.get(k).log);
+                    }
+                    run.flip();
+                    if (segment>=0 && segment!=segmentOf(start)){
+                        channel(segment).force(false);
+                    }
+                    segment=segmentOf(start);
+                    writeFully(channel(segment),run,start-segmentStart(segment));
+                    i=j;
+                }
+                channel(segment).force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+
+            lock.lock();
+            try {
+                flushedLsn=end;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
-    // 生成log
-    private byte[] wraplog(byte[] data) {
-        byte[] size=Parser.int2Bytes(data.length);
-        byte[] CheckSum=Parser.int2Bytes(calCheckSum(0,data));
-        byte[] log=Bytes.concat(size,CheckSum,data);
-        return log;
+    // 生成起始位置为lsn的log
+    private byte[] wraplog(byte[] data,long lsn) {
+        ByteBuffer log=ByteBuffer.allocate(OFFSET_DATA+data.length);
+        log.putInt(OFFSET_SIZE,data.length);
+        log.putLong(OFFSET_LSN,lsn);
+        log.position(OFFSET_DATA);
+        log.put(data);
+        byte[] raw=log.array();
+        log.putInt(OFFSET_CheckSum,calCheckSum(raw,OFFSET_LSN,raw.length-OFFSET_LSN));
+        return raw;
     }
 
+    // 在x处截断日志，x所在段之后的段文件全部删除
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            int segment=segmentOf(x);
+            channel(segment).truncate(Math.max(x-segmentStart(segment),HEADER_SIZE));
+            for (int i=segment+1;segmentFile(path,i).exists();i++){
+                deleteSegment(i);
+            }
         } finally {
             lock.unlock();
         }
+        readLock.lock();
+        try {
+            reader.reset();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // 删除lsn所在段之前的所有段文件，这些日志恢复时已经不再需要
+    public void purge(long lsn) {
+        int keep=segmentOf(lsn);
+        while(firstSegment<keep){
+            deleteSegment(firstSegment);
+            firstSegment++;
+        }
+    }
+
+    private void deleteSegment(int segment){
+        synchronized (segments){
+            RandomAccessFile raf=segments.remove(segment);
+            try {
+                if (raf!=null) raf.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            File f=segmentFile(path,segment);
+            if (f.exists() && !f.delete()){
+                Panic.panic(new IOException("Cannot delete "+f));
+            }
+        }
     }
 
-    // 获取下一个log的data
+    // 获取下一个log的data，只从读缓冲区复制一次
     public byte[] next() {
-        lock.lock();
+        readLock.lock();
         try{
-            byte[] log = internNext();
-            return Arrays.copyOfRange(log,OFFSET_DATA,log.length);
+            ByteBuffer log = internNext();
+            if (log==null) return null;
+            byte[] data=new byte[log.remaining()-OFFSET_DATA];
+            log.position(OFFSET_DATA);
+            log.get(data);
+            return data;
         } finally {
-            lock.unlock();
+            readLock.unlock();
         }
     }
 
     // 指针重新指向第一个log的位置
     public void rewind() {
-        position=4;
+        position=segmentStart(firstSegment)+HEADER_SIZE;
+    }
+
+    public void seek(long position) {
+        this.position=Math.max(position,segmentStart(firstSegment)+HEADER_SIZE);
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public long end() {
+        lock.lock();
+        try {
+            return appendLsn;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    // 写完缓冲区中剩余的日志再关闭
     public void close() {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            closing=true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
             Panic.panic(e);
         }
+        synchronized (segments){
+            for (RandomAccessFile raf:segments.values()){
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+            }
+            segments.clear();
+        }
     }
 }
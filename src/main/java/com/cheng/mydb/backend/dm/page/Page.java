@@ -1,11 +1,15 @@
 package com.cheng.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();                    // 上页锁
     void unlock();                  // 解锁
     void release();                 // 释放该页
     void setDirty(boolean dirty);   // 设置脏页
+    void beginModify();             // 开始修改页面内容，写回时不会复制到修改了一半的内容
+    void endModify();               // 修改结束
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+    ByteBuffer getData();           // 页面数据的视图，只能用绝对下标读写
 }
\ No newline at end of file
@@ -2,22 +2,31 @@ package com.cheng.mydb.backend.dm.page;
 
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PageImpl implements Page {
     private int pageNumber;         // 这个页面的页号，该页号从1开始
-    private byte[] data;            // 这个页实际包含的字节数据
+    private ByteBuffer data;        // 这个页实际包含的字节数据，可能是堆内数组，也可能是文件映射的一段
     private PageCache pageCache;
 
-    private boolean dirty;
+    private AtomicBoolean dirty;
     private Lock lock;
+    private AtomicInteger modifying;    // 正在进行的修改数，不同的DataItem可以同时修改同一页
+    private AtomicLong version;         // 每次修改开始和结束时加一
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pageCache) {
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pageCache) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pageCache = pageCache;
         this.lock=new ReentrantLock();
+        this.dirty=new AtomicBoolean();
+        this.modifying=new AtomicInteger();
+        this.version=new AtomicLong();
     }
 
     public void lock() {
@@ -33,18 +42,49 @@ public class PageImpl implements Page {
     }
 
     public void setDirty(boolean dirty) {
-        this.dirty=dirty;
+        this.dirty.set(dirty);
     }
 
     public boolean isDirty() {
-        return dirty;
+        return dirty.get();
+    }
+
+    // 清除脏标记，返回之前是否是脏页。写回前调用，之后的修改会重新标记为脏页
+    public boolean clearDirty() {
+        return dirty.getAndSet(false);
+    }
+
+    public void beginModify() {
+        version.incrementAndGet();
+        modifying.incrementAndGet();
+    }
+
+    public void endModify() {
+        modifying.decrementAndGet();
+        version.incrementAndGet();
+    }
+
+    /**
+     * 把页面内容复制到dst，复制前后都没有正在进行的修改、并且期间没有修改开始或结束时返回true。
+     * 返回false时复制到的内容可能只包含一次修改的一部分，不能写回：
+     * 逻辑redo（比如移动）不能重复执行，磁盘上的页面必须是某次修改之前或之后的完整状态
+     */
+    public boolean snapshot(ByteBuffer dst) {
+        long v=version.get();
+        if (modifying.get()>0) return false;
+        ByteBuffer src=data.duplicate();
+        src.clear();
+        dst.clear();
+        dst.put(src);
+        dst.flip();
+        return modifying.get()==0 && version.get()==v;
     }
 
     public int getPageNumber() {
         return pageNumber;
     }
 
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
 }
@@ -1,8 +1,11 @@
 package com.cheng.mydb.backend.dm.page;
 
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import com.cheng.mydb.backend.utils.BufferUtil;
 import com.cheng.mydb.backend.utils.RandomUtil;
+import com.cheng.mydb.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -10,36 +13,59 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ * Checkpoint
+ * 116~123字节为最近一次checkpoint时日志的位置，恢复时只需要从这里开始redo
+ * 124~127字节为checkpoint时的总页数
+ * 128~135字节为checkpoint时仍在进行的事务最早的日志位置，恢复时从这里开始undo，之前的日志段可以删除
+ * Format
+ * 136~139字节为FORMAT_MAGIC，140~143字节为数据文件格式的版本。旧格式的文件这里全为0，
+ * 普通页中没有PageLSN，不能直接打开
+ * 版本1：普通页为[FreeSpaceOffset][PageLSN][Data]
+ * 版本2：VM的Entry带有FLAG_VERSIONED，freeze只访问带这个标记的数据项，更早的数据项不会被freeze
  */
 public class PageOne {
     private static final int OFFSET_VC=100; // VC偏移量
     private static final int LEN_VC=8;      // VC长8字节
+    private static final int OFFSET_CKPT_LSN=OFFSET_VC+LEN_VC*2;
+    private static final int OFFSET_CKPT_PAGES=OFFSET_CKPT_LSN+8;
+    private static final int OFFSET_CKPT_UNDO=OFFSET_CKPT_PAGES+4;
+    private static final int OFFSET_FORMAT=OFFSET_CKPT_UNDO+8;
+    private static final int OFFSET_VERSION=OFFSET_FORMAT+4;
+    static final int FORMAT_MAGIC=0x4D594442;
+    static final int FORMAT_VERSION=2;
 
     // 返回一个初始化的第一页数据
     public static byte[] initRaw(){
         byte[] raw=new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);
+        ByteBuffer buf=ByteBuffer.wrap(raw);
+        setVcOpen(buf);
+        buf.putInt(OFFSET_FORMAT,FORMAT_MAGIC);
+        buf.putInt(OFFSET_VERSION,FORMAT_VERSION);
         return raw;
     }
 
     public static void setVcOpen(Page page){
-        page.setDirty(true);
+        page.beginModify();
         setVcOpen(page.getData());
+        page.setDirty(true);
+        page.endModify();
     }
 
     // db启动时给100~107字节处填入一个随机字节
-    private static void setVcOpen(byte[] raw) {
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC),0,raw,OFFSET_VC,LEN_VC);
+    private static void setVcOpen(ByteBuffer raw) {
+        BufferUtil.put(raw,OFFSET_VC,RandomUtil.randomBytes(LEN_VC));
     }
 
     public static void setVcClose(Page page){
-        page.setDirty(true);
+        page.beginModify();
         setVcClose(page.getData());
+        page.setDirty(true);
+        page.endModify();
     }
 
     // db关闭时将100~107字节拷贝到108~115字节
-    private static void setVcClose(byte[] raw){
-        System.arraycopy(raw,OFFSET_VC,raw,OFFSET_VC+LEN_VC,LEN_VC);
+    private static void setVcClose(ByteBuffer raw){
+        BufferUtil.copy(raw,OFFSET_VC,raw,OFFSET_VC+LEN_VC,LEN_VC);
     }
 
     public static boolean checkVc(Page page){
@@ -47,8 +73,42 @@ public class PageOne {
     }
 
     //　比较100~107字节和108~115字节是否相等
-    private static boolean checkVc(byte[] raw){
-        return Arrays.equals(Arrays.copyOfRange(raw,OFFSET_VC,LEN_VC),
-                Arrays.copyOfRange(raw,OFFSET_VC+LEN_VC, OFFSET_VC+LEN_VC*2));
+    private static boolean checkVc(ByteBuffer raw){
+        return Arrays.equals(BufferUtil.copyOfRange(raw,OFFSET_VC,OFFSET_VC+LEN_VC),
+                BufferUtil.copyOfRange(raw,OFFSET_VC+LEN_VC, OFFSET_VC+LEN_VC*2));
+    }
+
+    // 打开已有的文件时检查数据文件的格式，不是当前版本时抛出BadDbFileException
+    public static void checkFormat(Page page) throws Exception {
+        checkFormat(page.getData());
+    }
+
+    static void checkFormat(ByteBuffer raw) throws Exception {
+        if (raw.getInt(OFFSET_FORMAT)!=FORMAT_MAGIC || raw.getInt(OFFSET_VERSION)!=FORMAT_VERSION){
+            throw Error.BadDbFileException;
+        }
+    }
+
+    // 记录checkpoint，lsn之前的日志对应的修改都已经写回数据源，undoLsn之前的日志不再需要
+    public static void setCheckpoint(Page page,long lsn,int pageNumber,long undoLsn){
+        ByteBuffer raw=page.getData();
+        page.beginModify();     // 三个字段要一起写回
+        raw.putLong(OFFSET_CKPT_LSN,lsn);
+        raw.putInt(OFFSET_CKPT_PAGES,pageNumber);
+        raw.putLong(OFFSET_CKPT_UNDO,undoLsn);
+        page.setDirty(true);
+        page.endModify();
+    }
+
+    public static long getCheckpointLsn(Page page){
+        return page.getData().getLong(OFFSET_CKPT_LSN);
+    }
+
+    public static int getCheckpointPageNumber(Page page){
+        return page.getData().getInt(OFFSET_CKPT_PAGES);
+    }
+
+    public static long getCheckpointUndoLsn(Page page){
+        return page.getData().getLong(OFFSET_CKPT_UNDO);
     }
 }
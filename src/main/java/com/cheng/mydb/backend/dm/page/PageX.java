@@ -1,32 +1,34 @@
 package com.cheng.mydb.backend.dm.page;
 
 import com.cheng.mydb.backend.dm.pageCache.PageCache;
-import com.cheng.mydb.backend.utils.Parser;
+import com.cheng.mydb.backend.utils.BufferUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * PageX管理普通页的工具类
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始的偏移量
+ * PageLSN: 8字节 最后一次修改这一页的日志的LSN，写回这一页之前这个位置之前的日志必须已经持久化
  * Data 其实就是一个个的DataItem
  */
 public class PageX {
     private static final byte OFFSET_FREE=0;
-    private static final byte OFFSET_DATA=2;
+    private static final byte OFFSET_LSN=OFFSET_FREE+2;
+    public static final byte OFFSET_DATA=OFFSET_LSN+8;
     public static final int MAX_FREE_SPACE= PageCache.PAGE_SIZE-OFFSET_DATA;
 
     // 返回一个初始化的普通页数据
     public static byte[] initRaw(){
         byte[] raw=new byte[PageCache.PAGE_SIZE];
-        setFSO(raw,OFFSET_DATA);
+        setFSO(ByteBuffer.wrap(raw),OFFSET_DATA);
         return raw;
     }
 
     // 页数据的前两个字节写入新的FSO
-    private static void setFSO(byte[] raw, short FSO) {
-        System.arraycopy(Parser.short2Bytes(FSO),0,raw,OFFSET_FREE,OFFSET_DATA);
+    private static void setFSO(ByteBuffer raw, short FSO) {
+        raw.putShort(OFFSET_FREE,FSO);
     }
 
     // 获取page的FSO
@@ -34,19 +36,42 @@ public class PageX {
         return getFSO(page.getData());
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw,0,2));
+    private static short getFSO(ByteBuffer raw) {
+        return raw.getShort(OFFSET_FREE);
     }
 
     // 将raw插入page中，返回插入位置
+    // 修改完成后再标记脏页，保证后台写回时复制到的不完整内容会被再次写回
     public static short insert(Page page,byte[] raw){
-        page.setDirty(true);
         short FSO = getFSO(page.getData());
-        System.arraycopy(raw,0,page.getData(),FSO,raw.length);
+        BufferUtil.put(page.getData(),FSO,raw);
         setFSO(page.getData(), (short) (FSO+raw.length));
+        page.setDirty(true);
         return FSO;
     }
 
+    // 记录修改这一页的日志的LSN，需要在标记脏页之前调用。
+    // 不同的DataItem可能并发修改同一页，它们的日志顺序和调用顺序不一定相同，只保留较大的LSN
+    public static void setPageLsn(Page page,long lsn){
+        page.lock();
+        try {
+            if (getPageLsn(page.getData())<lsn){
+                page.getData().putLong(OFFSET_LSN,lsn);
+            }
+        } finally {
+            page.unlock();
+        }
+    }
+
+    public static long getPageLsn(Page page){
+        return getPageLsn(page.getData());
+    }
+
+    // 页面缓存写回页面之前读取，第一页的这个位置始终为0
+    public static long getPageLsn(ByteBuffer raw){
+        return raw.getLong(OFFSET_LSN);
+    }
+
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page page){
         return PageCache.PAGE_SIZE-(int)getFSO(page.getData());
@@ -54,18 +79,23 @@ public class PageX {
 
     // 将raw插入page中的offset位置，并将page的FSO设置为较大的FSO
     public static void recoverInsert(Page page,byte[] raw,short offset){
-        page.setDirty(true);
-        System.arraycopy(raw,0,page.getData(),offset,raw.length);
+        BufferUtil.put(page.getData(),offset,raw);
 
         short FSO=getFSO(page.getData());
         if (FSO<offset+raw.length){
             setFSO(page.getData(), (short) (offset+raw.length));
         }
+        page.setDirty(true);
     }
 
     // 将raw插入page中的offset位置，不更新update
     public static void recoverUpdate(Page page,byte[] raw,short offset){
+        recoverUpdate(page,raw,0,raw.length,offset);
+    }
+
+    // 将src中从srcOffset开始的length个字节写入page中的offset位置
+    public static void recoverUpdate(Page page,byte[] src,int srcOffset,int length,int offset){
+        BufferUtil.put(page.getData(),offset,src,srcOffset,length);
         page.setDirty(true);
-        System.arraycopy(raw,0,page.getData(),offset,raw.length);
     }
 }
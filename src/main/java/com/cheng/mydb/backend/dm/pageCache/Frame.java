@@ -0,0 +1,37 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.dm.page.PageImpl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 缓冲池中一个页面的槽位
+class Frame {
+    final int pgno;
+    final CompletableFuture<PageImpl> page=new CompletableFuture<>();  // 页面读入完成后被complete
+    final AtomicInteger pins=new AtomicInteger(1);                      // 页面被引用的个数，-1表示已被驱逐
+    volatile boolean referenced;                                        // 最近被访问过，在Am中淘汰时再给一次机会
+    boolean hot;                                                        // 是否在Am中，由TwoQueuePolicy维护
+
+    Frame(int pgno) {
+        this.pgno = pgno;
+    }
+
+    // 引用计数加1，frame已被驱逐时返回false
+    boolean pin(){
+        while(true){
+            int pin=pins.get();
+            if (pin<0) return false;
+            if (pins.compareAndSet(pin,pin+1)) return true;
+        }
+    }
+
+    int unpin(){
+        return pins.decrementAndGet();
+    }
+
+    // 没有被引用时才能驱逐，驱逐后不能再被pin
+    boolean tryEvict(){
+        return pins.compareAndSet(0,-1);
+    }
+}
@@ -0,0 +1,41 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * FrameArena：缓冲池的页面内存，启动时一次性申请堆外内存，切成PAGE_SIZE大小的帧重复使用。
+ * 页面读入时取一帧，干净页被驱逐或者脏页写回完成后归还，不再为每次读入分配堆上数组。
+ * 帧全部被占用时（被驱逐的脏页还没写回）申请的线程等待。
+ */
+class FrameArena {
+    private static final int MAX_CHUNK=1<<30;     // 单次allocateDirect最多1G
+
+    private LinkedBlockingQueue<ByteBuffer> free;
+
+    FrameArena(int frames) {
+        free=new LinkedBlockingQueue<>();
+        int chunkFrames=MAX_CHUNK/PageCache.PAGE_SIZE;
+        for (int allocated=0;allocated<frames;allocated+=chunkFrames){
+            int n=Math.min(chunkFrames,frames-allocated);
+            ByteBuffer chunk=ByteBuffer.allocateDirect(n*PageCache.PAGE_SIZE);
+            for (int i=0;i<n;i++){
+                ByteBuffer dup=chunk.duplicate();
+                dup.position(i*PageCache.PAGE_SIZE);
+                dup.limit((i+1)*PageCache.PAGE_SIZE);
+                free.add(dup.slice());
+            }
+        }
+    }
+
+    // 取一个空闲帧，内容是之前使用者留下的数据
+    ByteBuffer allocate() throws InterruptedException {
+        ByteBuffer frame=free.take();
+        frame.clear();
+        return frame;
+    }
+
+    void free(ByteBuffer frame){
+        free.add(frame);
+    }
+}
@@ -0,0 +1,142 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.common.AbstractCache;
+import com.cheng.mydb.backend.dm.page.Page;
+import com.cheng.mydb.backend.dm.page.PageImpl;
+import com.cheng.mydb.backend.utils.BufferUtil;
+import com.cheng.mydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * MappedPageCache：把数据库文件按MAP_SIZE分成多个区域映射到内存，页面的数据直接是映射区域的一段，
+ * 读入页面不需要系统调用和拷贝，堆上也不再保存页面的副本，页面的驻留和换出交给操作系统。
+ * 操作系统可能在任何时候把映射区域的修改写回文件，无法保证日志先于数据落盘，适合读多写少的场景。
+ *
+ * 映射会把文件扩展到整个区域的长度，正常关闭时再截断到实际的页数；
+ * 崩溃后文件末尾多出来的空页由恢复时的truncateByPgno去掉。
+ */
+public class MappedPageCache extends AbstractCache<Page> implements PageCache {
+    private static final int MAP_SIZE=1<<26;                    // 每个区域映射64M
+    private static final int MAP_PAGES=MAP_SIZE/PAGE_SIZE;      // 每个区域的页数
+    private static final int MAPS_PER_SEGMENT=PageFile.SEGMENT_PAGES/MAP_PAGES;   // 每个段文件的区域数
+
+    private PageFile pageFile;
+
+    private Lock lock;                              // 保护regions的扩展
+    private volatile MappedByteBuffer[] regions;    // 第i个区域映射页号在[i*MAP_PAGES+1,(i+1)*MAP_PAGES]内的页面
+
+    private AtomicInteger pageNumbers;  // 总页数
+
+    MappedPageCache(PageFile pageFile) {
+        super(0);
+        this.pageFile=pageFile;
+        lock=new ReentrantLock();
+        regions=new MappedByteBuffer[0];
+        pageNumbers=new AtomicInteger(pageFile.pageNumber());
+    }
+
+    // 页码所在的区域，还没有映射时先映射，区域不会跨越段文件
+    private MappedByteBuffer region(int pgno){
+        int index=(pgno-1)/MAP_PAGES;
+        MappedByteBuffer[] segs=regions;
+        if (index<segs.length && segs[index]!=null) return segs[index];
+
+        lock.lock();
+        try {
+            segs=regions;
+            if (index<segs.length && segs[index]!=null) return segs[index];
+            segs=Arrays.copyOf(segs,Math.max(segs.length,index+1));
+            FileChannel fc=pageFile.channel(index/MAPS_PER_SEGMENT);
+            segs[index]=fc.map(FileChannel.MapMode.READ_WRITE,(long)(index%MAPS_PER_SEGMENT)*MAP_SIZE,MAP_SIZE);
+            regions=segs;
+            return segs[index];
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 页面在映射区域中的一段，不拷贝数据
+    private ByteBuffer slice(int pgno){
+        ByteBuffer buf=region(pgno).duplicate();
+        int offset=((pgno-1)%MAP_PAGES)*PAGE_SIZE;
+        buf.position(offset);
+        buf.limit(offset+PAGE_SIZE);
+        return buf.slice();
+    }
+
+    @Override
+    protected Page getForCache(long key) {
+        int pgno=(int) key;
+        return new PageImpl(pgno,slice(pgno),this);
+    }
+
+    // 修改已经在映射区域中，不需要写回
+    @Override
+    protected void releaseForCache(Page page) {
+    }
+
+    public int newPage(byte[] initData) {
+        int pgno=pageNumbers.incrementAndGet();
+        BufferUtil.put(slice(pgno),0,initData);
+        return pgno;
+    }
+
+    public Page getPage(int pgno) throws Exception {
+        return get((long)pgno);
+    }
+
+    public void close() {
+        super.close();
+        flushAll();
+        pageFile.truncate(pageNumbers.get());
+        pageFile.close();
+    }
+
+    public void release(Page page) {
+        release(page.getPageNumber());
+    }
+
+    // 截断的页面仍在映射中，之后newPage会用初始数据覆盖它们，关闭时截断文件
+    public void truncateByPgno(int maxPgno) {
+        pageNumbers.set(maxPgno);
+    }
+
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    public void flushPage(Page page) {
+        region(page.getPageNumber()).force();
+    }
+
+    // 映射区域的预读由操作系统完成
+    public void prefetch(int fromPgno, int count) {
+    }
+
+    public void flushAll() {
+        for (MappedByteBuffer region:regions){
+            if (region!=null) region.force();
+        }
+    }
+
+    // 映射区域随时可能被操作系统写回，无法在写回前检查页面LSN，只能依赖修改页面之前日志已经持久化
+    public void setLogFlusher(LongConsumer flusher) {
+    }
+
+    // 操作系统可能在修改进行到一半时写回
+    public boolean consistentWriteBack() {
+        return false;
+    }
+}
@@ -5,13 +5,12 @@ import com.cheng.mydb.backend.utils.Panic;
 import com.cheng.mydb.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
 
 public interface PageCache {
     public static final int PAGE_SIZE=1<<13; // 该项目中设置一页=8k
-    public static final String DB_SUFFIX = ".db";
+    public static final String DB_SUFFIX = ".db";     // 第一个段文件的后缀，之后的段文件为.db.1、.db.2……
+    public static final int DEFAULT_IO_CONCURRENCY = 32;    // 默认最多同时进行的页面IO数
 
     int newPage(byte[] initData);               // 新建页并刷入数据源
     Page getPage(int pgno) throws Exception;    // 根据页码获取页
@@ -20,8 +19,21 @@ public interface PageCache {
     void truncateByPgno(int maxPgno);
     int getPageNumber();                        // 获取总页数
     void flushPage(Page page);                  // 把该页刷回数据源
+    void flushAll();                            // 把所有脏页刷回数据源并fsync
+    void prefetch(int fromPgno,int count);      // 异步预读从fromPgno开始的count页，不等待读入完成
+    void setLogFlusher(LongConsumer flusher);   // 写回页面之前用flusher持久化到页面LSN为止的日志
+    boolean consistentWriteBack();              // 写回的页面是否总是不包含进行到一半的修改
 
-    public static PageCacheImpl create(String path,long memory){
+    public static PageCache create(String path,long memory){
+        return create(path,memory,false);
+    }
+
+    public static PageCache create(String path,long memory,boolean mapped){
+        return create(path,memory,mapped,DEFAULT_IO_CONCURRENCY);
+    }
+
+    // mapped为true时使用内存映射文件的页面缓存，此时memory和ioConcurrency不起作用
+    public static PageCache create(String path,long memory,boolean mapped,int ioConcurrency){
         File file=new File(path+DB_SUFFIX);
         try {
             if(!file.createNewFile()) {
@@ -34,19 +46,21 @@ public interface PageCache {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        RandomAccessFile raf=null;
-        FileChannel fc=null;
-        try {
-            raf=new RandomAccessFile(file,"rw");
-            fc=raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        if (mapped){
+            return new MappedPageCache(new PageFile(path));
         }
+        return new PageCacheImpl(new PageFile(path),(int)(memory/PAGE_SIZE),ioConcurrency);
+    }
+
+    public static PageCache open(String path,long memory){
+        return open(path,memory,false);
+    }
 
-        return new PageCacheImpl(raf,fc,(int)memory/PAGE_SIZE);
+    public static PageCache open(String path,long memory,boolean mapped){
+        return open(path,memory,mapped,DEFAULT_IO_CONCURRENCY);
     }
 
-    public static PageCacheImpl open(String path,long memory){
+    public static PageCache open(String path,long memory,boolean mapped,int ioConcurrency){
         File file = new File(path+DB_SUFFIX);
         if(!file.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -55,15 +69,9 @@ public interface PageCache {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        RandomAccessFile raf=null;
-        FileChannel fc=null;
-        try {
-            raf=new RandomAccessFile(file,"rw");
-            fc=raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        if (mapped){
+            return new MappedPageCache(new PageFile(path));
         }
-
-        return new PageCacheImpl(raf,fc,(int)memory/PAGE_SIZE);
+        return new PageCacheImpl(new PageFile(path),(int)(memory/PAGE_SIZE),ioConcurrency);
     }
 }
@@ -1,141 +1,445 @@
 package com.cheng.mydb.backend.dm.pageCache;
 
-import com.cheng.mydb.backend.common.AbstractCache;
 import com.cheng.mydb.backend.dm.page.Page;
 import com.cheng.mydb.backend.dm.page.PageImpl;
+import com.cheng.mydb.backend.dm.page.PageX;
 import com.cheng.mydb.backend.utils.Panic;
 import com.cheng.mydb.common.Error;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
- * PageCacheImpl：数据页的缓存具体实现类，除了重写获取 和释放两个方法外，还完成了所有数据页的统一管理：
+ * PageCacheImpl：数据页的缓冲池，除了页面的获取和释放外，还完成了所有数据页的统一管理：
  *     1）获取数据库中的数据页总数；getPageNumber()
  *     2）新建一个数据页并写入数据库文件；newPage(byte[] initData)
  *     3）从缓存中获取指定的数据页；getPage(int pgno)
  *     4）删除指定位置后面的数据页；truncateByBgno(int maxPgno)
+ *
+ * 引用计数归零的页面仍然留在缓冲池中，只有缓冲池满时才按2Q策略驱逐，被驱逐的脏页交给后台线程写回。
+ * 所有页面都被引用时，获取新页面的线程等待其他线程释放页面，超过reserveTimeout仍然没有可驱逐的页面时抛出CacheFullException，
+ * 避免持有页面的线程互相等待时永远阻塞。
+ * 脏页由PageWriter批量写回，一批只fsync一次。
+ * 页面的内存来自预先申请的堆外FrameArena，读入时直接读进空闲帧，驱逐后帧被重复使用。
+ * 页面读写都使用带位置的read(buf,pos)/write(buf,pos)，不共享文件指针，也不需要文件锁，
+ * 多个页面可以同时在磁盘上读写，同时进行的IO数由ioPermits限制。
+ * 连续访问相邻的页面时，后台线程提前读入后面的READ_AHEAD页，也可以通过prefetch()显式预读。
+ * 预读不会等待被引用的页面释放，缓冲池中没有可驱逐的页面时直接放弃。
  */
-public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
+public class PageCacheImpl implements PageCache {
     private static final int MEM_MIN_LIM = 10;
+    private static final int WRITE_BACK_SLACK = 4;     // 额外预留maxResources/4个帧，供被驱逐的脏页等待写回
+    private static final int READ_AHEAD = 32;           // 检测到顺序访问时预读的页数
+    private static final int SEQ_TRIGGER = 2;           // 连续访问多少个相邻页面后开始预读
+    private static final int PREFETCH_THREADS = 4;
+    private static final long RESERVE_TIMEOUT = 10_000; // 等待可驱逐页面的最长时间(ms)
 
-    private Lock lock;
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private PageFile pageFile;
+    private Semaphore ioPermits;    // 限制同时进行的磁盘IO数
 
     private AtomicInteger pageNumbers;  // 总页数
 
-    PageCacheImpl(RandomAccessFile file,FileChannel fc,int maxResources) {
-        super(maxResources);
+    private ConcurrentHashMap<Integer,Frame> frames;   // 缓冲池中的页面
+    private Lock lock;                                  // 保护policy和resident
+    private Condition unpinned;                         // 有页面的引用计数归零
+    private AtomicInteger waiters;                      // 正在等待空闲页面的线程数
+    private TwoQueuePolicy policy;
+    private int maxResources;
+    private int resident;                               // 缓冲池中（包括正在读入）的页面数
+    private long reserveTimeout=RESERVE_TIMEOUT;
+
+    private FrameArena arena;
+    private PageWriter writer;
+
+    private ExecutorService prefetcher;
+    private volatile boolean closed;
+    private volatile LongConsumer logFlusher;
+    private int readAhead;
+    // 顺序访问检测，只是一个启发式的判断，并发访问时的竞争不影响正确性
+    private volatile int lastAccess;
+    private volatile int seqRun;
+    private volatile int readAheadEnd;
+
+    PageCacheImpl(PageFile pageFile,int maxResources,int ioConcurrency) {
         if(maxResources < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try {
-            length = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        this.pageFile=pageFile;
+        ioPermits=new Semaphore(Math.max(1,ioConcurrency));
+        pageNumbers=new AtomicInteger(pageFile.pageNumber());
+
+        this.maxResources=maxResources;
+        frames=new ConcurrentHashMap<>();
         lock=new ReentrantLock();
-        this.file=file;
-        this.fc=fc;
-        pageNumbers=new AtomicInteger();
-    }
+        unpinned=lock.newCondition();
+        waiters=new AtomicInteger();
+        policy=new TwoQueuePolicy(maxResources);
+        arena=new FrameArena(maxResources+maxResources/WRITE_BACK_SLACK);
+        writer=new PageWriter(this);
 
+        readAhead=Math.min(READ_AHEAD,maxResources/4);
+        prefetcher=Executors.newFixedThreadPool(Math.min(PREFETCH_THREADS,Math.max(1,ioConcurrency)),r -> {
+            Thread t=new Thread(r,"page-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
+    public Page getPage(int pgno) throws Exception {
+        detectSequential(pgno);
+        while(true){
+            Frame frame=frames.get(pgno);
+            if (frame==null){   // 缓冲池中不存在，由自己读入
+                Frame created=new Frame(pgno);
+                frame=frames.putIfAbsent(pgno,created);
+                if (frame==null){
+                    return load(created);
+                }
+            }
+            if (!frame.pin()){  // 页面刚好被驱逐，重新查找
+                frames.remove(pgno,frame);
+                continue;
+            }
+            frame.referenced=true;
+            try {
+                return frame.page.get();
+            } catch (ExecutionException e) {
+                Throwable cause=e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+        }
+    }
 
-    // 当资源不在缓存时，从数据源获取
-    @Override
-    protected Page getForCache(long key) throws Exception {
-        int pgno=(int) key;
-        long offset=pageOffset(pgno);
+    // 为frame腾出位置并从数据源读入页面
+    private Page load(Frame frame) throws Exception {
+        try {
+            reserve();
+        } catch (Exception e) {
+            frames.remove(frame.pgno,frame);
+            frame.page.completeExceptionally(e);
+            throw e;
+        }
+        PageImpl page;
+        try {
+            page=getForCache(frame.pgno);
+        } catch (InterruptedException e) {
+            unreserve();
+            frames.remove(frame.pgno,frame);
+            frame.page.completeExceptionally(e);
+            throw e;
+        }
 
-        ByteBuffer buf=ByteBuffer.allocate(PAGE_SIZE);
         lock.lock();
-        try{
-            fc.position(offset);
-            fc.read(buf);
+        try {
+            policy.admit(frame);
+            if (waiters.get()>0) unpinned.signalAll();
+        } finally {
+            lock.unlock();
         }
-        catch (IOException e){
-            Panic.panic(e);
+        frame.page.complete(page);
+        return page;
+    }
+
+    // 占用一个页面位置，缓冲池满时驱逐一个没有被引用的页面，全部被引用时最多等待reserveTimeout
+    private void reserve() throws Exception {
+        lock.lock();
+        try {
+            if (resident>=maxResources){
+                waiters.incrementAndGet();
+                try {
+                    long nanos=TimeUnit.MILLISECONDS.toNanos(reserveTimeout);
+                    while(resident>=maxResources){
+                        Frame victim=policy.evict();
+                        if (victim==null){
+                            if (nanos<=0){
+                                throw Error.CacheFullException;
+                            }
+                            nanos=unpinned.awaitNanos(nanos);
+                        }
+                        else{
+                            evict(victim);
+                        }
+                    }
+                } finally {
+                    waiters.decrementAndGet();
+                }
+            }
+            resident++;
+        } finally {
+            lock.unlock();
         }
-        lock.unlock();
-        return new PageImpl(pgno,buf.array(),this);
     }
 
-    // 对应页的偏移量，页码从1开始
-    private long pageOffset(int pgno) {
-        return (pgno-1)*PAGE_SIZE;
+    // 只用于测试
+    void setReserveTimeout(long millis){
+        this.reserveTimeout=millis;
+    }
+
+    // 不等待的reserve，缓冲池满且没有可驱逐的页面时返回false
+    private boolean tryReserve(){
+        lock.lock();
+        try {
+            while(resident>=maxResources){
+                Frame victim=policy.evict();
+                if (victim==null) return false;
+                evict(victim);
+            }
+            resident++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    // 读入失败时归还reserve占用的位置
+    private void unreserve(){
+        lock.lock();
+        try {
+            resident--;
+            if (waiters.get()>0) unpinned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    // 当资源被驱逐时，如果是脏页，刷回数据源
-    @Override
-    protected void releaseForCache(Page page) {
+    // 将victim移出缓冲池，脏页交给后台线程写回，写完后再归还帧
+    private void evict(Frame victim){
+        PageImpl page=victim.page.join();
         if (page.isDirty()){
-            flush(page);
-            page.setDirty(false);
+            writer.submit(page);
+        }
+        else{
+            arena.free(page.getData());
+        }
+        frames.remove(victim.pgno,victim);
+        resident--;
+    }
+
+    // 当资源不在缓存时，从数据源获取
+    private PageImpl getForCache(int pgno) throws InterruptedException {
+        writer.awaitWritten(pgno);
+
+        ByteBuffer buf=arena.allocate();
+        ioPermits.acquireUninterruptibly();
+        try{
+            pageFile.read(pgno,buf);
+        } finally {
+            ioPermits.release();
         }
+        // 文件末尾之后的部分清零，帧中可能还有上一个页面的数据
+        while(buf.hasRemaining()){
+            buf.put((byte)0);
+        }
+        buf.clear();
+        return new PageImpl(pgno,buf,this);
     }
 
     // 刷回数据源
     private void flush(Page page) {
-        int pgno=page.getPageNumber();
-        long offset = pageOffset(pgno);
+        ByteBuffer buf=page.getData().duplicate();
+        buf.clear();
+        ioPermits.acquireUninterruptibly();
+        try {
+            pageFile.write(page.getPageNumber(),buf);
+            pageFile.force();
+        } finally {
+            ioPermits.release();
+        }
+    }
+
+    // 从第first页开始连续写入多个页面，只由PageWriter调用。
+    // FileChannel没有带位置的聚集写，这里仍然使用文件指针，其他读写都是带位置的，写回线程是唯一使用文件指针的线程
+    void write(int first,ByteBuffer[] bufs){
+        // WAL：这批页面中最新的修改对应的日志先持久化
+        LongConsumer flusher=logFlusher;
+        if (flusher!=null){
+            long lsn=0;
+            for (ByteBuffer buf:bufs){
+                lsn=Math.max(lsn,PageX.getPageLsn(buf));
+            }
+            flusher.accept(lsn);
+        }
+        ioPermits.acquireUninterruptibly();
+        try {
+            pageFile.write(first,bufs);
+        } finally {
+            ioPermits.release();
+        }
+    }
+
+    // 被驱逐的脏页写回完成后，PageWriter归还它的帧
+    void recycle(ByteBuffer frame){
+        arena.free(frame);
+    }
 
+    void force(){
+        pageFile.force();
+    }
+
+    // 持有锁时遍历缓冲池中的脏页，期间不会有页面被驱逐，只由PageWriter调用
+    void forEachDirtyPage(Consumer<PageImpl> action){
         lock.lock();
         try {
-            ByteBuffer buf=ByteBuffer.wrap(page.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            for (Frame frame:frames.values()){
+                if (!frame.page.isDone() || frame.page.isCompletedExceptionally()) continue;
+                PageImpl page=frame.page.join();
+                if (page.isDirty()){
+                    action.accept(page);
+                }
+            }
         } finally {
             lock.unlock();
         }
+    }
+
+    // 连续访问相邻页面SEQ_TRIGGER次后，保持预读窗口领先当前位置至少readAhead/2页
+    private void detectSequential(int pgno){
+        int last=lastAccess;
+        if (last==pgno) return;
+        lastAccess=pgno;
+        if (pgno!=last+1){
+            seqRun=0;
+            return;
+        }
+        if (++seqRun<SEQ_TRIGGER) return;
+        int end=readAheadEnd;
+        if (end-pgno>readAhead/2) return;
+        int from=Math.max(end,pgno)+1;
+        readAheadEnd=from+readAhead-1;
+        prefetch(from,readAhead);
+    }
 
+    // 预读只是提示，和close()并发时线程池可能已经关闭，直接放弃剩下的页面
+    public void prefetch(int fromPgno, int count) {
+        if (closed) return;
+        int to=Math.min(fromPgno+count-1,pageNumbers.get());
+        for (int pgno=Math.max(1,fromPgno);pgno<=to;pgno++){
+            if (frames.containsKey(pgno)) continue;
+            int p=pgno;
+            try {
+                prefetcher.execute(() -> prefetchPage(p));
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    // 在后台读入一页，读入后不保留引用
+    private void prefetchPage(int pgno){
+        if (closed || frames.containsKey(pgno)) return;
+        if (!tryReserve()) return;
+        Frame created=new Frame(pgno);
+        if (frames.putIfAbsent(pgno,created)!=null){
+            unreserve();
+            return;
+        }
+        PageImpl page;
+        try {
+            page=getForCache(pgno);
+        } catch (InterruptedException e) {
+            unreserve();
+            frames.remove(pgno,created);
+            created.page.completeExceptionally(e);
+            return;
+        }
+        lock.lock();
+        try {
+            policy.admit(created);
+        } finally {
+            lock.unlock();
+        }
+        created.page.complete(page);
+        release(page);
     }
 
     public int newPage(byte[] initData) {
         int pgno=pageNumbers.incrementAndGet();
-        Page page=new PageImpl(pgno,initData,null);
+        Page page=new PageImpl(pgno,ByteBuffer.wrap(initData),null);
         flush(page);
         return pgno;
     }
 
-    public Page getPage(int pgno) throws Exception {
-        return get((long)pgno);
-    }
-
+    // 关闭时写回所有的脏页
     public void close() {
-        super.close();
-        try{
-            file.close();
-            fc.close();
-        } catch (IOException e) {
+        // 不能shutdownNow，中断正在读文件的线程会关闭FileChannel
+        closed=true;
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1,TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
             Panic.panic(e);
         }
+        writer.close();
+        frames.clear();
+        pageFile.close();
     }
 
+    // 释放页面的引用，页面仍然留在缓冲池中
     public void release(Page page) {
-        release(page.getPageNumber());
+        Frame frame=frames.get(page.getPageNumber());
+        if (frame==null) return;
+        if (frame.unpin()==0 && waiters.get()>0){
+            lock.lock();
+            try {
+                unpinned.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
+    // 截断到maxPgno页，只在恢复时调用
     public void truncateByPgno(int maxPgno) {
-        // TODO
+        writer.flushAll();      // 等待已提交的写入完成，避免截断后又被写回
+        lock.lock();
+        try {
+            for (Frame frame:frames.values()){
+                if (frame.pgno>maxPgno && frame.tryEvict()){
+                    policy.remove(frame);
+                    frames.remove(frame.pgno,frame);
+                    resident--;
+                    arena.free(frame.page.join().getData());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        pageFile.truncate(maxPgno);
+        pageNumbers.set(maxPgno);
     }
 
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
+    // 经由PageWriter写回，避免被它之前复制的旧内容覆盖，只写这一页，不会触发所有脏页的写回
     public void flushPage(Page page) {
-        flush(page);
+        writer.flushPage((PageImpl) page);
+    }
+
+    public void flushAll() {
+        writer.flushAll();
+    }
+
+    public void setLogFlusher(LongConsumer flusher) {
+        this.logFlusher=flusher;
+    }
+
+    // PageWriter只复制没有正在进行修改的页面
+    public boolean consistentWriteBack() {
+        return true;
     }
 }
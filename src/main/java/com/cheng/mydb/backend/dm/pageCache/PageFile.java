@@ -0,0 +1,238 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.utils.Panic;
+import com.cheng.mydb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PageFile：由多个段文件组成的表空间，每段最多SEGMENT_PAGES页(1G)，
+ * 第i段保存页号在[i*SEGMENT_PAGES+1,(i+1)*SEGMENT_PAGES]内的页面。
+ * 第0段就是原来的path.db，之后依次是path.db.1、path.db.2……，段文件在第一次读写时才打开。
+ * 页面在段内的偏移量用long计算，不同段的读写使用各自的FileChannel，互不影响。
+ * 只有最后一段可以不满，打开时段文件必须从第0段开始连续，中间缺段、前面的段不满、
+ * 或者缺段之后还有段文件（比如之前的数据库留下的）时拒绝打开，否则之后的页面会整体错位。
+ */
+class PageFile {
+    static final int SEGMENT_PAGES=(1<<30)/PageCache.PAGE_SIZE;    // 每个段文件的页数
+
+    // 一个已经打开的段文件
+    private static class Segment {
+        final RandomAccessFile file;
+        final FileChannel fc;
+        volatile boolean dirty;     // 上次force之后有写入
+
+        Segment(RandomAccessFile file) {
+            this.file = file;
+            this.fc = file.getChannel();
+        }
+    }
+
+    private String path;
+    private Lock lock;                      // 保护segments的扩展
+    private volatile Segment[] segments;    // 还没打开的段为null
+    private int pageNumber;                 // 打开时所有段文件的总页数
+
+    PageFile(String path) {
+        this.path=path;
+        this.lock=new ReentrantLock();
+        this.segments=new Segment[0];
+        try {
+            this.pageNumber=countPages(path);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 检查段文件是否连续，返回总页数
+    static int countPages(String path) throws Exception {
+        long pages=0;
+        int count=0;
+        while(segmentFile(path,count).exists()){
+            count++;
+        }
+        for (int i=0;i<count;i++){
+            long segPages=segmentFile(path,i).length()/PageCache.PAGE_SIZE;
+            if (i<count-1 && segPages!=SEGMENT_PAGES){
+                throw Error.BadDbFileException;
+            }
+            pages+=segPages;
+        }
+        if (hasSegmentAfter(path,count)){
+            throw Error.BadDbFileException;
+        }
+        return (int)pages;
+    }
+
+    // 目录中是否有序号不小于index的段文件
+    private static boolean hasSegmentAfter(String path,int index){
+        File first=segmentFile(path,0).getAbsoluteFile();
+        String prefix=first.getName()+".";
+        String[] names=first.getParentFile().list();
+        if (names==null) return false;
+        for (String name:names){
+            if (!name.startsWith(prefix)) continue;
+            try {
+                if (Integer.parseInt(name.substring(prefix.length()))>=index) return true;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return false;
+    }
+
+    int pageNumber(){
+        return pageNumber;
+    }
+
+    private File segmentFile(int index){
+        return segmentFile(path,index);
+    }
+
+    private static File segmentFile(String path,int index){
+        if (index==0) return new File(path+PageCache.DB_SUFFIX);
+        return new File(path+PageCache.DB_SUFFIX+"."+index);
+    }
+
+    static int segmentIndex(int pgno){
+        return (pgno-1)/SEGMENT_PAGES;
+    }
+
+    // 页面在所在段文件中的偏移量，页码从1开始
+    static long segmentOffset(int pgno){
+        return (long)((pgno-1)%SEGMENT_PAGES)*PageCache.PAGE_SIZE;
+    }
+
+    // 第index段，还没打开时打开（不存在则创建）
+    private Segment segment(int index){
+        Segment[] segs=segments;
+        if (index<segs.length && segs[index]!=null) return segs[index];
+
+        lock.lock();
+        try {
+            segs=segments;
+            if (index<segs.length && segs[index]!=null) return segs[index];
+            segs=Arrays.copyOf(segs,Math.max(segs.length,index+1));
+            segs[index]=new Segment(new RandomAccessFile(segmentFile(index),"rw"));
+            segments=segs;
+            return segs[index];
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    FileChannel channel(int index){
+        return segment(index).fc;
+    }
+
+    // 读入第pgno页，读到段文件末尾为止，不修改文件指针
+    void read(int pgno,ByteBuffer buf){
+        FileChannel fc=segment(segmentIndex(pgno)).fc;
+        long offset=segmentOffset(pgno);
+        try {
+            while(buf.hasRemaining()){
+                if (fc.read(buf,offset+buf.position())<0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 写入第pgno页，不修改文件指针
+    void write(int pgno,ByteBuffer buf){
+        Segment seg=segment(segmentIndex(pgno));
+        long offset=segmentOffset(pgno);
+        try {
+            while(buf.hasRemaining()){
+                seg.fc.write(buf,offset+buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        seg.dirty=true;
+    }
+
+    // 从第first页开始连续写入多个页面，跨段时拆成每段一次聚集写。
+    // FileChannel没有带位置的聚集写，这里使用文件指针，只能由一个线程调用
+    void write(int first,ByteBuffer[] bufs){
+        int i=0;
+        while(i<bufs.length){
+            int pgno=first+i;
+            int n=Math.min(bufs.length-i,SEGMENT_PAGES-(pgno-1)%SEGMENT_PAGES);
+            Segment seg=segment(segmentIndex(pgno));
+            try {
+                seg.fc.position(segmentOffset(pgno));
+                long remaining=(long)n*PageCache.PAGE_SIZE;
+                while(remaining>0){
+                    remaining-=seg.fc.write(bufs,i,n);
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            seg.dirty=true;
+            i+=n;
+        }
+    }
+
+    // fsync上次force之后写过的段
+    void force(){
+        for (Segment seg:segments){
+            if (seg==null || !seg.dirty) continue;
+            seg.dirty=false;
+            try {
+                seg.fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 截断到maxPgno页，之后的段文件全部删除
+    void truncate(int maxPgno){
+        int last=maxPgno==0?0:segmentIndex(maxPgno);
+        lock.lock();
+        try {
+            Segment seg=segment(last);
+            seg.file.setLength((long)(maxPgno-last*SEGMENT_PAGES)*PageCache.PAGE_SIZE);
+            Segment[] segs=segments;
+            for (int i=last+1;i<segs.length;i++){
+                if (segs[i]!=null){
+                    segs[i].file.close();
+                }
+            }
+            if (segs.length>last+1){
+                segments=Arrays.copyOf(segs,last+1);
+            }
+            for (int i=last+1;segmentFile(i).exists();i++){
+                if (!segmentFile(i).delete()){
+                    Panic.panic(new IOException("Cannot delete "+segmentFile(i)));
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close(){
+        for (Segment seg:segments){
+            if (seg==null) continue;
+            try {
+                seg.fc.close();
+                seg.file.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.dm.page.PageImpl;
+import com.cheng.mydb.backend.utils.Panic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 后台写回线程，所有异步的页面写入都由这一个线程完成：
+ *     1）被驱逐的脏页，驱逐它的线程不需要等待磁盘写入
+ *     2）每隔FLUSH_INTERVAL，或者有flushAll请求时，缓冲池中所有的脏页
+ * 一批页面按页号排序，相邻的页面合并成一次聚集写，整批只fsync一次。
+ * 还没写完的页面记录在pending中，再次读入这一页之前需要等待它写完。
+ * 被驱逐的页面直接从它的帧写出，写完后帧还给FrameArena；缓冲池中的脏页复制到写回线程自己的堆外暂存区，暂存区重复使用。
+ * 暂存区最多STAGING_PAGES页，脏页更多时分几轮复制和写出，写回线程占用的堆外内存有固定的上限。
+ */
+class PageWriter implements Runnable {
+    private static final long FLUSH_INTERVAL=200;   // 后台批量写回脏页的周期(ms)
+    private static final int MAX_RUN=64;            // 一次聚集写最多合并的相邻页数
+    private static final long RETRY_NANOS=1000000;  // 有页面正在修改时，flushAll重试的间隔
+    private static final int STAGING_PAGES=1024;     // 暂存区的页数上限(8M)
+
+    // 页面内容所在缓冲区的来源，决定写完后怎样归还
+    enum Source {
+        EVICTED,    // 被驱逐页面的帧，还给FrameArena
+        STAGING,    // 写回线程的暂存区，放回staging
+        CALLER      // flushPage的调用者分配的，写完后丢弃
+    }
+
+    // 一次收集脏页的结果
+    private enum Collect {
+        DONE,       // 所有的脏页都已经复制
+        DEFERRED,   // 有正在修改的页面没有复制
+        FULL        // 暂存区用完了，还有脏页没有复制
+    }
+
+    // 一个等待写回的页面
+    static class PendingWrite {
+        final int pgno;
+        final ByteBuffer buffer;    // 页面内容所在的缓冲区，写完后归还
+        final Source source;
+        final ByteBuffer image;     // 写入时使用的视图
+        final CompletableFuture<Void> written=new CompletableFuture<>();
+
+        PendingWrite(int pgno, ByteBuffer buffer, Source source) {
+            this.pgno = pgno;
+            this.buffer = buffer;
+            this.source = source;
+            if (buffer!=null){
+                this.image = buffer.duplicate();
+                image.clear();
+            }
+            else{
+                this.image = null;
+            }
+        }
+    }
+
+    private static final PendingWrite WAKE=new PendingWrite(0,null,Source.CALLER);    // 唤醒写回线程处理flushAll请求
+    private static final PendingWrite CLOSE=new PendingWrite(0,null,Source.CALLER);   // 通知写回线程退出，不能用interrupt，否则会关闭FileChannel
+
+    private PageCacheImpl pc;
+    private BlockingQueue<PendingWrite> queue;
+    private ConcurrentHashMap<Integer,PendingWrite> pending;
+    private ConcurrentLinkedQueue<CompletableFuture<Void>> flushRequests;
+    private ArrayDeque<ByteBuffer> staging;     // 空闲的暂存区，只由写回线程访问
+    private int stagingAllocated;               // 已经分配的暂存区页数，不超过STAGING_PAGES
+    private Thread thread;
+
+    PageWriter(PageCacheImpl pc) {
+        this.pc=pc;
+        this.queue=new LinkedBlockingQueue<>();
+        this.pending=new ConcurrentHashMap<>();
+        this.flushRequests=new ConcurrentLinkedQueue<>();
+        this.staging=new ArrayDeque<>();
+        this.thread=new Thread(this,"page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 提交一个被驱逐的脏页，页面已经脱离缓冲池，不会再被修改，直接从它的帧写出
+    void submit(PageImpl page){
+        PendingWrite pw=new PendingWrite(page.getPageNumber(),page.getData(),Source.EVICTED);
+        pending.put(pw.pgno,pw);
+        queue.add(pw);
+    }
+
+    // 读入一页之前调用，确保这一页之前的内容已经写回
+    void awaitWritten(int pgno){
+        PendingWrite pw=pending.get(pgno);
+        if (pw!=null){
+            pw.written.join();
+        }
+    }
+
+    // 只写回一个页面并fsync。由调用者复制页面，页面正在修改时等修改结束后再复制，
+    // 复制到的内容和之前收集的旧内容都经过写回线程按顺序写出，不会被旧内容覆盖。
+    // 暂存区只由写回线程访问，这里复制到堆上的缓冲区，写完后丢弃
+    void flushPage(PageImpl page){
+        ByteBuffer buffer=ByteBuffer.allocate(PageCache.PAGE_SIZE);
+        PendingWrite pw=new PendingWrite(page.getPageNumber(),buffer,Source.CALLER);
+        while(true){
+            page.clearDirty();
+            if (page.snapshot(pw.image)) break;
+            page.setDirty(true);
+            LockSupport.parkNanos(RETRY_NANOS);
+        }
+        pending.put(pw.pgno,pw);
+        queue.add(pw);
+        pw.written.join();
+    }
+
+    // 把调用时缓冲池中所有的脏页写回并fsync，返回时这些页面已经持久化
+    void flushAll(){
+        CompletableFuture<Void> request=new CompletableFuture<>();
+        flushRequests.add(request);
+        queue.add(WAKE);
+        request.join();
+    }
+
+    @Override
+    public void run() {
+        long lastFlush=System.currentTimeMillis();
+        while(true){
+            List<PendingWrite> batch=new ArrayList<>();
+            try {
+                long wait=lastFlush+FLUSH_INTERVAL-System.currentTimeMillis();
+                PendingWrite pw=queue.poll(Math.max(0,wait),TimeUnit.MILLISECONDS);
+                if (pw!=null){
+                    batch.add(pw);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            boolean closing=removeSignals(batch);
+
+            // 先取出请求再收集脏页，保证请求之前变脏的页面都在这一批中
+            List<CompletableFuture<Void>> requests=new ArrayList<>();
+            CompletableFuture<Void> request;
+            while((request=flushRequests.poll())!=null){
+                requests.add(request);
+            }
+            long now=System.currentTimeMillis();
+            Set<Integer> collected=new HashSet<>();    // 这一次写回中已经复制过的页面
+            Collect result=Collect.DONE;
+            if (closing || !requests.isEmpty() || now-lastFlush>=FLUSH_INTERVAL){
+                result=collectDirtyPages(batch,collected);
+                closing|=removeSignals(batch);
+                lastFlush=now;
+            }
+
+            writeBatch(batch);
+            // 暂存区用完时写完这一轮再复制剩下的脏页，每一轮至少复制STAGING_PAGES个新的页面。
+            // 正在修改的页面这次没有复制，flushAll需要等这些修改结束后把它们也写回。
+            // 期间仍然写出被驱逐的页面，否则等待空闲帧的修改线程永远不会结束
+            while(result==Collect.FULL || (result==Collect.DEFERRED && (closing || !requests.isEmpty()))){
+                if (result==Collect.DEFERRED){
+                    LockSupport.parkNanos(RETRY_NANOS);
+                }
+                batch=new ArrayList<>();
+                queue.drainTo(batch);
+                closing|=removeSignals(batch);
+                result=collectDirtyPages(batch,collected);
+                closing|=removeSignals(batch);
+                writeBatch(batch);
+            }
+            for (CompletableFuture<Void> r:requests){
+                r.complete(null);
+            }
+            if (closing) return;
+        }
+    }
+
+    // 复制缓冲池中collected以外的脏页，复制前先清除脏标记，复制期间被修改的页面会重新变脏。
+    // 正在修改的页面保持脏标记，留到下一次；暂存区用完时剩下的脏页留到下一轮
+    private Collect collectDirtyPages(List<PendingWrite> batch,Set<Integer> collected){
+        Collect[] result={Collect.DONE};
+        pc.forEachDirtyPage(page -> {
+            int pgno=page.getPageNumber();
+            if (result[0]==Collect.FULL || collected.contains(pgno)) return;
+            ByteBuffer buffer=staging.poll();
+            if (buffer==null){
+                if (stagingAllocated==STAGING_PAGES){
+                    result[0]=Collect.FULL;
+                    return;
+                }
+                buffer=ByteBuffer.allocateDirect(PageCache.PAGE_SIZE);
+                stagingAllocated++;
+            }
+            PendingWrite pw=new PendingWrite(pgno,buffer,Source.STAGING);
+            pending.put(pgno,pw);
+            if (!page.clearDirty()){
+                pending.remove(pgno,pw);
+                staging.push(buffer);
+                return;
+            }
+            if (!page.snapshot(pw.image)){
+                page.setDirty(true);
+                pending.remove(pgno,pw);
+                staging.push(buffer);
+                result[0]=Collect.DEFERRED;
+                return;
+            }
+            collected.add(pgno);
+            batch.add(pw);
+        });
+        queue.drainTo(batch);
+        return result[0];
+    }
+
+    // 移除batch中的WAKE和CLOSE，返回是否收到了CLOSE
+    private boolean removeSignals(List<PendingWrite> batch){
+        boolean closing=false;
+        Iterator<PendingWrite> it=batch.iterator();
+        while(it.hasNext()){
+            PendingWrite pw=it.next();
+            if (pw==CLOSE) closing=true;
+            if (pw==WAKE || pw==CLOSE) it.remove();
+        }
+        return closing;
+    }
+
+    // 按页号排序，相邻的页面合并成一次聚集写，最后fsync一次
+    private void writeBatch(List<PendingWrite> batch){
+        if (batch.isEmpty()) return;
+        TreeMap<Integer,PendingWrite> sorted=new TreeMap<>();
+        for (PendingWrite pw:batch){
+            sorted.put(pw.pgno,pw);
+        }
+
+        List<ByteBuffer> run=new ArrayList<>();
+        int first=0;
+        int last=0;
+        for (Map.Entry<Integer,PendingWrite> e:sorted.entrySet()){
+            int pgno=e.getKey();
+            if (run.isEmpty() || pgno!=last+1 || run.size()==MAX_RUN){
+                if (!run.isEmpty()){
+                    pc.write(first,run.toArray(new ByteBuffer[0]));
+                    run.clear();
+                }
+                first=pgno;
+            }
+            run.add(e.getValue().image);
+            last=pgno;
+        }
+        if (!run.isEmpty()){
+            pc.write(first,run.toArray(new ByteBuffer[0]));
+        }
+        pc.force();
+
+        for (PendingWrite pw:batch){
+            pw.written.complete(null);
+            pending.remove(pw.pgno,pw);
+            if (pw.source==Source.EVICTED){
+                pc.recycle(pw.buffer);
+            }
+            else if (pw.source==Source.STAGING){
+                staging.push(pw.buffer);
+            }
+        }
+    }
+
+    // 停止写回线程，退出前把剩余的脏页全部写回
+    void close(){
+        queue.add(CLOSE);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 2Q页面替换策略，只被访问一次的页面（比如全表扫描）停留在A1in中很快被淘汰，不会冲掉Am中的热点页
+ * A1in: 第一次被访问的页面，FIFO淘汰
+ * A1out: 从A1in淘汰的页号（不占用页面空间），在A1out中的页面再次被访问时直接进入Am
+ * Am: 被重复访问的页面，CLOCK淘汰（被访问过的页面再给一次机会）
+ * 所有方法都由PageCacheImpl在持有锁时调用
+ */
+class TwoQueuePolicy {
+    private int kin;    // A1in的目标大小
+    private int kout;   // A1out的最大大小
+
+    private LinkedHashMap<Integer,Frame> a1in;
+    private LinkedHashSet<Integer> a1out;
+    private LinkedHashMap<Integer,Frame> am;
+
+    TwoQueuePolicy(int maxResources) {
+        this.kin=Math.max(1,maxResources/4);
+        this.kout=Math.max(1,maxResources/2);
+        a1in=new LinkedHashMap<>();
+        a1out=new LinkedHashSet<>();
+        am=new LinkedHashMap<>();
+    }
+
+    // 新读入的页面进入A1in，最近从A1in淘汰过的页面直接进入Am
+    void admit(Frame frame){
+        if (a1out.remove(frame.pgno)){
+            frame.hot=true;
+            am.put(frame.pgno,frame);
+        }
+        else{
+            frame.hot=false;
+            a1in.put(frame.pgno,frame);
+        }
+    }
+
+    void remove(Frame frame){
+        if (frame.hot) am.remove(frame.pgno,frame);
+        else a1in.remove(frame.pgno,frame);
+    }
+
+    // 选出一个被驱逐的页面，所有页面都被引用时返回null
+    Frame evict(){
+        Frame victim=null;
+        if (a1in.size()>kin){
+            victim=evictA1in();
+        }
+        if (victim==null){
+            victim=evictAm();
+        }
+        if (victim==null){
+            victim=evictA1in();
+        }
+        return victim;
+    }
+
+    private Frame evictA1in(){
+        Iterator<Frame> it=a1in.values().iterator();
+        while(it.hasNext()){
+            Frame frame=it.next();
+            if (frame.tryEvict()){
+                it.remove();
+                a1out.add(frame.pgno);
+                if (a1out.size()>kout){
+                    Iterator<Integer> oldest=a1out.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private Frame evictAm(){
+        // 第一轮被访问过的页面清掉标记后移到队尾，第二轮它们也可以被淘汰
+        for (int round=0;round<2;round++){
+            List<Frame> again=new ArrayList<>();
+            Frame victim=null;
+            Iterator<Frame> it=am.values().iterator();
+            while(it.hasNext()){
+                Frame frame=it.next();
+                if (frame.referenced){
+                    frame.referenced=false;
+                    it.remove();
+                    again.add(frame);
+                    continue;
+                }
+                if (frame.tryEvict()){
+                    it.remove();
+                    victim=frame;
+                    break;
+                }
+            }
+            for (Frame frame:again){
+                am.put(frame.pgno,frame);
+            }
+            if (victim!=null) return victim;
+        }
+        return null;
+    }
+}
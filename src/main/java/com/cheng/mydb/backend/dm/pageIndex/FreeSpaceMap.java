@@ -0,0 +1,150 @@
+package com.cheng.mydb.backend.dm.pageIndex;
+
+import com.cheng.mydb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 空闲空间表，把PageIndex保存在数据文件旁的.fsm文件中，打开数据库时不必再读入每一页计算空闲空间。
+ *
+ * 文件格式为：
+ * [CheckpointLsn] [PageNumber] [FreeSpace2] [FreeSpace3] ... [FreeSpaceN]
+ * CheckpointLsn 8字节，写入这个表的checkpoint的日志位置
+ * PageNumber 4字节int，checkpoint时数据文件的总页数
+ * FreeSpacei 2字节，第i页的空闲空间，第一页不参与分配，0xFFFF表示保存时这一页正在被插入，空闲空间未知
+ *
+ * 每次checkpoint在写回所有脏页之后、更新第一页的checkpoint之前保存这个表。内存中保留上一次写入的内容，
+ * 只写入变化了的空闲空间：先把CheckpointLsn写成INVALID_LSN并持久化，再写入变化的部分，最后写入新的头部，
+ * 中途崩溃时这个表不会被当作可信的表，每次checkpoint的IO只和两次checkpoint之间插入过的页数有关。
+ * 表中的空闲空间和checkpoint时写回的页面一致，checkpoint之后只有插入会改变页面的空闲空间，
+ * 崩溃后只需要重新读入恢复时重放过插入日志的页面和checkpoint之后新建的页面，不用扫描整个数据文件。
+ * CheckpointLsn和第一页记录的不一致时（比如保存之后、第一页写回之前崩溃），这个表不可信，重建整个PageIndex。
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX=".fsm";
+    public static final int UNKNOWN=-1;
+
+    private static final int OFFSET_LSN=0;
+    private static final int OFFSET_PAGES=OFFSET_LSN+8;
+    private static final int OFFSET_SPACES=OFFSET_PAGES+4;
+    private static final short UNKNOWN_SPACE=(short)0xFFFF;
+    private static final long INVALID_LSN=-1;    // 正在更新，日志位置不会是负数
+
+    private File file;
+    private ByteBuffer image;   // 文件中的内容，null时下一次保存写入整个表
+
+    public FreeSpaceMap(String path) {
+        this.file=new File(path+FSM_SUFFIX);
+    }
+
+    // 读入checkpointLsn时保存的空闲空间，下标是页号，没有记录的页面为UNKNOWN。
+    // 文件不存在、不是这次checkpoint写入的时候返回null
+    public synchronized int[] load(long checkpointLsn){
+        if (!file.exists() || file.length()<OFFSET_SPACES){
+            return null;
+        }
+        ByteBuffer buf=ByteBuffer.allocate((int)file.length());
+        try (RandomAccessFile raf=new RandomAccessFile(file,"r")){
+            FileChannel fc=raf.getChannel();
+            while(buf.hasRemaining()){
+                if (fc.read(buf,buf.position())<0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        image=buf;
+        int pageNumber=buf.getInt(OFFSET_PAGES);
+        if (buf.getLong(OFFSET_LSN)!=checkpointLsn || pageNumber<1 || file.length()!=OFFSET_SPACES+2L*(pageNumber-1)){
+            return null;
+        }
+        int[] spaces=new int[pageNumber+1];
+        Arrays.fill(spaces,UNKNOWN);
+        for (int pgno=2;pgno<=pageNumber;pgno++){
+            short space=buf.getShort(offset(pgno));
+            if (space!=UNKNOWN_SPACE){
+                spaces[pgno]=space&0xffff;
+            }
+        }
+        return spaces;
+    }
+
+    // checkpoint时保存空闲空间表，正在被插入、不在pIndex中的页面记为未知
+    public synchronized void save(PageIndex pIndex,long checkpointLsn,int pageNumber){
+        ByteBuffer buf=ByteBuffer.allocate(OFFSET_SPACES+2*Math.max(0,pageNumber-1));
+        buf.putLong(OFFSET_LSN,checkpointLsn);
+        buf.putInt(OFFSET_PAGES,pageNumber);
+        for (int pgno=2;pgno<=pageNumber;pgno++){
+            buf.putShort(offset(pgno),UNKNOWN_SPACE);
+        }
+        List<PageInfo> pages=pIndex.pages();
+        for (PageInfo pi:pages){
+            if (pi.pgno>=2 && pi.pgno<=pageNumber){
+                buf.putShort(offset(pi.pgno),(short)pi.freeSpace);
+            }
+        }
+        try (RandomAccessFile raf=new RandomAccessFile(file,"rw")){
+            FileChannel fc=raf.getChannel();
+            // 只有头部变化时不需要先作废，12字节的头部在一个扇区内一次写入
+            if (image==null || image.limit()!=buf.limit()
+                    || !sliceOf(buf,OFFSET_SPACES,buf.limit()).equals(sliceOf(image,OFFSET_SPACES,image.limit()))){
+                write(fc,ByteBuffer.allocate(8).putLong(0,INVALID_LSN),OFFSET_LSN);
+                fc.force(false);
+                writeChanged(fc,buf);
+                fc.truncate(buf.limit());
+                fc.force(false);
+            }
+            write(fc,sliceOf(buf,OFFSET_LSN,OFFSET_SPACES),OFFSET_LSN);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        image=buf;
+    }
+
+    // 写入和image不同的连续区间，image之外的部分都要写入
+    private void writeChanged(FileChannel fc,ByteBuffer buf) throws IOException {
+        int limit=buf.limit();
+        int start=OFFSET_SPACES;
+        while(start<limit){
+            while(start<limit && !changed(buf,start)){
+                start+=2;
+            }
+            int end=start;
+            while(end<limit && changed(buf,end)){
+                end+=2;
+            }
+            if (start<end){
+                write(fc,sliceOf(buf,start,end),start);
+            }
+            start=end;
+        }
+    }
+
+    // buf中position处的一页空闲空间是否和文件中的不同
+    private boolean changed(ByteBuffer buf,int position){
+        return image==null || position+2>image.limit() || image.getShort(position)!=buf.getShort(position);
+    }
+
+    private static ByteBuffer sliceOf(ByteBuffer buf,int start,int end){
+        ByteBuffer slice=buf.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+
+    private static void write(FileChannel fc,ByteBuffer buf,long position) throws IOException {
+        while(buf.hasRemaining()){
+            fc.write(buf,position+buf.position());
+        }
+    }
+
+    private static int offset(int pgno){
+        return OFFSET_SPACES+2*(pgno-2);
+    }
+}
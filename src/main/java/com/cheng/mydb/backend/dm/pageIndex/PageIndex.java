@@ -4,51 +4,51 @@ import com.cheng.mydb.backend.dm.pageCache.PageCache;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
-// 页面索引
+/**
+ * 页面索引
+ * 每个区间是一个无锁的双端队列，select从队头取出一页，插入期间这一页不在索引中，
+ * 所以同时插入的线程总是拿到不同的页面，不会竞争同一把锁，也不会在同一页上互相等待。
+ * 插入完成后页面放回队头，下一次插入优先使用刚访问过、还在缓冲池中的页面。
+ */
 public class PageIndex {
     private static final byte INTERVALS_NO=40;                              // 一页分成40个区间
     private static final int THRESHOLD= PageCache.PAGE_SIZE/INTERVALS_NO;   // 每个区间大小
 
-    private List<PageInfo>[] lists; // 第i(1开始)个区间内的page表示该page拥有的空闲空间为THRESHOLD*i-1<=freeSapce<THRESHOLD*i
-    private Lock lock;
+    private ConcurrentLinkedDeque<PageInfo>[] lists; // 第i(1开始)个区间内的page表示该page拥有的空闲空间为THRESHOLD*i-1<=freeSapce<THRESHOLD*i
 
+    @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock=new ReentrantLock();
-        lists=new List[INTERVALS_NO+1];
+        lists=new ConcurrentLinkedDeque[INTERVALS_NO+1];
         for (int i=0;i<INTERVALS_NO+1;i++){
-            lists[i]=new ArrayList<>();
+            lists[i]=new ConcurrentLinkedDeque<>();
         }
     }
 
     public void add(int pgno,int freeSpace){
-        lock.lock();
-        try{
-            int index=freeSpace/THRESHOLD;
-            lists[index].add(new PageInfo(pgno,freeSpace));
-        } finally {
-            lock.unlock();
+        int index=freeSpace/THRESHOLD;
+        lists[index].addFirst(new PageInfo(pgno,freeSpace));
+    }
+
+    // 当前所有页面的空闲空间，被select取出还没放回的页面不在其中
+    public List<PageInfo> pages(){
+        List<PageInfo> pages=new ArrayList<>();
+        for (ConcurrentLinkedDeque<PageInfo> list:lists){
+            pages.addAll(list);
         }
+        return pages;
     }
 
     // 返回一个空间足够的page
     public PageInfo select(int spaceSize){
-        lock.lock();
-        try {
-            int index = spaceSize / THRESHOLD;
-            if (++index > INTERVALS_NO) return null; // 区间从1开始
-            while (index <= INTERVALS_NO) {
-                if (lists[index].size() == 0) {
-                    index++;
-                    continue;
-                }
-                return lists[index].remove(0);
-            }
-            return null;
-        } finally {
-            lock.unlock();
+        int index = spaceSize / THRESHOLD;
+        if (++index > INTERVALS_NO) return null; // 区间从1开始
+        while (index <= INTERVALS_NO) {
+            PageInfo pi=lists[index].pollFirst();
+            if (pi!=null) return pi;
+            index++;
         }
+        return null;
     }
 }
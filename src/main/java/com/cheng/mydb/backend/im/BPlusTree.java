@@ -3,16 +3,20 @@ package com.cheng.mydb.backend.im;
 import com.cheng.mydb.backend.common.SubArray;
 import com.cheng.mydb.backend.dm.DataManager;
 import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.dm.dataItem.ItemRedo;
 import com.cheng.mydb.backend.tm.TransactionManagerImpl;
 import com.cheng.mydb.backend.utils.Parser;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class BPlusTree {
+    private static final int LEAF_READ_AHEAD = 8;   // 范围查找时预读领先当前叶子的叶子数
+
     DataManager dm;
     long bootUid;
     // 由于B+树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个bootDataItem，该DataItem中存储了根节点的UID。
@@ -41,11 +45,11 @@ public class BPlusTree {
     }
 
     // bootDataItem.data()存的就是rootUid
-    private long rootUid() {
+    long rootUid() {
         bootLock.lock();
         try {
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            return sa.raw.getLong(sa.start);
         } finally {
             bootLock.unlock();
         }
@@ -58,23 +62,33 @@ public class BPlusTree {
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Bytes(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            diRaw.raw.putLong(diRaw.start, newRootUid);
+            ItemRedo redo = new ItemRedo(diRaw);
+            redo.written(0, 8);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID, redo);
         } finally {
             bootLock.unlock();
         }
     }
 
-    private long searchLeaf(long nodeUid, long key) throws Exception {
+    class LeafRes {
+        long leafUid, parentUid;
+    }
+
+    // 找到key所在的叶子，同时返回最后经过的内部节点，根节点就是叶子时parentUid为0
+    LeafRes searchLeaf(long nodeUid, long parentUid, long key) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         if(isLeaf) {
-            return nodeUid;
+            LeafRes res = new LeafRes();
+            res.leafUid = nodeUid;
+            res.parentUid = parentUid;
+            return res;
         } else {
             long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+            return searchLeaf(next, nodeUid, key);
         }
     }
 
@@ -93,12 +107,15 @@ public class BPlusTree {
         return searchRange(key, key);
     }
 
-    // 范围查找
+    // 范围查找，沿兄弟节点扫描叶子，同时由LeafReadAhead提前预读后面的叶子
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
         long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
+        LeafRes lr = searchLeaf(rootUid, 0, leftKey);
+        LeafReadAhead readAhead = new LeafReadAhead(lr.parentUid, leftKey, rightKey);
+        long leafUid = lr.leafUid;
         List<Long> uids = new ArrayList<>();
         while(true) {
+            readAhead.advance(leafUid);
             Node leaf = Node.loadNode(this, leafUid);
             Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
             leaf.release();
@@ -112,6 +129,45 @@ public class BPlusTree {
         return uids;
     }
 
+    // 叶子的兄弟链只能一个一个地读，这里从父节点（以及父节点的兄弟）中取出后面叶子的UID，
+    // 保持已经提示预读的叶子领先当前叶子LEAF_READ_AHEAD个，只取覆盖[leftKey, rightKey]的叶子，单点查找不会预读
+    class LeafReadAhead {
+        long parentUid;     // 下一个取叶子的内部节点，0表示范围内没有更多的叶子
+        long leftKey, rightKey;
+        Deque<Long> hinted = new ArrayDeque<>();    // 已经提示预读、还没有扫描到的叶子
+        Deque<Long> known = new ArrayDeque<>();     // 已经取出、还没有提示预读的叶子
+
+        LeafReadAhead(long parentUid, long leftKey, long rightKey) {
+            this.parentUid = parentUid;
+            this.leftKey = leftKey;
+            this.rightKey = rightKey;
+        }
+
+        // 扫描到leafUid之前调用。并发的分裂可能插入新的叶子，这时hinted中的叶子对不上，之后的预读继续从known开始
+        void advance(long leafUid) throws Exception {
+            // 丢掉正在读的叶子和它之前的提示，这些叶子已经读过
+            while(!hinted.isEmpty()) {
+                long hint = hinted.pollFirst();
+                if(hint == leafUid) break;
+            }
+            while(hinted.size() < LEAF_READ_AHEAD) {
+                if(known.isEmpty()) {
+                    if(parentUid == 0) return;
+                    Node parent = Node.loadNode(BPlusTree.this, parentUid);
+                    Node.SearchSonsRes res = parent.searchSonsRange(leftKey, rightKey);
+                    parent.release();
+                    known.addAll(res.sons);
+                    parentUid = res.siblingUid;
+                    continue;
+                }
+                long son = known.pollFirst();
+                if(son == leafUid) continue;
+                dm.prefetch(son);
+                hinted.addLast(son);
+            }
+        }
+    }
+
     public void insert(long key, long uid) throws Exception {
         long rootUid = rootUid();
         InsertRes res = insert(rootUid, uid, key);
@@ -2,11 +2,12 @@ package com.cheng.mydb.backend.im;
 
 import com.cheng.mydb.backend.common.SubArray;
 import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.dm.dataItem.ItemRedo;
 import com.cheng.mydb.backend.tm.TransactionManagerImpl;
-import com.cheng.mydb.backend.utils.Parser;
+import com.cheng.mydb.backend.utils.BufferUtil;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -16,6 +17,7 @@ import java.util.List;
  * 其中 LeafFlag 标记了该节点是否是个叶子节点；KeyNumber 为该节点中 key 的个数；SiblingUid 是其兄弟节点存储在 DM 中的 UID。
  * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
  * son与key均为8字节，son相当于指针，如果该节点为叶子节点，son为数据的uid，否则son为儿子节点的uid; key为递增的键
+ * 插入和分裂只在日志中记录移动了哪些项、写入了哪些字段（ItemRedo），不记录整个节点
  */
 public class Node {
     static final byte IS_LEAF_OFFSET = 0;
@@ -33,68 +35,71 @@ public class Node {
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte)1);
         } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
+            raw.raw.put(raw.start + IS_LEAF_OFFSET, (byte)0);
         }
     }
 
     static boolean getRawIsLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return raw.raw.get(raw.start + IS_LEAF_OFFSET) == (byte)1;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Bytes((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        raw.raw.putShort(raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)raw.raw.getShort(raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Bytes(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        raw.raw.putLong(raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return raw.raw.getLong(raw.start+SIBLING_OFFSET);
+    }
+
+    // 第kth个[Son][Key]在节点中的偏移
+    static int kthOffset(int kth) {
+        return NODE_HEADER_SIZE+kth*(8*2);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Bytes(uid), 0, raw.raw, offset, 8);
+        raw.raw.putLong(offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return raw.raw.getLong(offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Bytes(key), 0, raw.raw, offset, 8);
+        raw.raw.putLong(offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return raw.raw.getLong(offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
         int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
+        BufferUtil.copy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
         int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
-        }
+        BufferUtil.copy(raw.raw, begin-(8*2), raw.raw, begin, end-begin+1);
     }
 
     // 根节点
     static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray raw = new SubArray(ByteBuffer.allocate(NODE_SIZE), 0, NODE_SIZE);
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
@@ -102,18 +107,18 @@ public class Node {
         setRawKthKey(raw, key, 0);
         setRawKthSon(raw, right, 1);
         setRawKthKey(raw, Long.MAX_VALUE, 1);
-        return raw.raw;
+        return raw.raw.array();
     }
 
     // 空的根节点
     static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray raw = new SubArray(ByteBuffer.allocate(NODE_SIZE), 0, NODE_SIZE);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
 
-        return raw.raw;
+        return raw.raw.array();
     }
 
     // 根据uid加载一个node
@@ -169,6 +174,39 @@ public class Node {
         }
     }
 
+    class SearchSonsRes {
+        List<Long> sons;
+        long siblingUid;
+    }
+
+    // 只用于内部节点，返回覆盖[leftKey, rightKey]的儿子，范围超出本节点时同时返回兄弟节点的UID
+    public SearchSonsRes searchSonsRange(long leftKey, long rightKey) {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys && getRawKthKey(raw, kth) <= leftKey) {
+                kth ++;
+            }
+            List<Long> sons = new ArrayList<>();
+            boolean covered = false;
+            while(kth < noKeys) {
+                sons.add(getRawKthSon(raw, kth));
+                if(rightKey < getRawKthKey(raw, kth)) {
+                    covered = true;
+                    break;
+                }
+                kth ++;
+            }
+            SearchSonsRes res = new SearchSonsRes();
+            res.sons = sons;
+            res.siblingUid = covered ? 0 : getRawSibling(raw);
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     class LeafSearchRangeRes {
         List<Long> uids;
         long siblingUid;
@@ -221,15 +259,16 @@ public class Node {
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
+        ItemRedo redo = new ItemRedo(raw);
         try {
-            success = insert(uid, key);
+            success = insert(uid, key, redo);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
             }
             if(needSplit()) {
                 try {
-                    SplitRes r = split();
+                    SplitRes r = split(redo);
                     res.newSon = r.newSon;
                     res.newKey = r.newKey;
                     return res;
@@ -242,14 +281,14 @@ public class Node {
             }
         } finally {
             if(err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                dataItem.after(TransactionManagerImpl.SUPER_XID, redo);
             } else {
                 dataItem.unBefore();
             }
         }
     }
 
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long key, ItemRedo redo) {
         int noKeys = getRawNoKeys(raw);
         int kth = 0;
         while(kth < noKeys) {
@@ -264,17 +303,22 @@ public class Node {
 
         if(getRawIsLeaf(raw)) {
             shiftRawKth(raw, kth);
+            redo.moved(kthOffset(kth), kthOffset(kth+1), NODE_SIZE-kthOffset(kth+1));
             setRawKthKey(raw, key, kth);
             setRawKthSon(raw, uid, kth);
-            setRawNoKeys(raw, noKeys+1);
+            redo.written(kthOffset(kth), 8*2);
         } else {
             long kk = getRawKthKey(raw, kth);
             setRawKthKey(raw, key, kth);
+            redo.written(kthOffset(kth)+8, 8);
             shiftRawKth(raw, kth+1);
+            redo.moved(kthOffset(kth+1), kthOffset(kth+2), NODE_SIZE-kthOffset(kth+2));
             setRawKthKey(raw, kk, kth+1);
             setRawKthSon(raw, uid, kth+1);
-            setRawNoKeys(raw, noKeys+1);
+            redo.written(kthOffset(kth+1), 8*2);
         }
+        setRawNoKeys(raw, noKeys+1);
+        redo.written(NO_KEYS_OFFSET, 2);
         return true;
     }
 
@@ -286,15 +330,17 @@ public class Node {
         long newSon, newKey;
     }
 
-    private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    private SplitRes split(ItemRedo redo) throws Exception {
+        SubArray nodeRaw = new SubArray(ByteBuffer.allocate(NODE_SIZE), 0, NODE_SIZE);
         setRawIsLeaf(nodeRaw, getRawIsLeaf(raw));
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         setRawSibling(nodeRaw, getRawSibling(raw));
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw.array());
         setRawNoKeys(raw, BALANCE_NUMBER);
         setRawSibling(raw, son);
+        redo.written(NO_KEYS_OFFSET, 2);
+        redo.written(SIBLING_OFFSET, 8);
 
         SplitRes res = new SplitRes();
         res.newSon = son;
@@ -0,0 +1,122 @@
+package com.cheng.mydb.backend.tm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongFunction;
+
+/**
+ * XID文件中事务状态的内存缓存，查询事务状态不再读文件。
+ * 按页缓存，每页XIDS_PER_PAGE个事务，和XID文件一样每个状态占2位，一个int中放16个事务的状态。
+ * 某一页第一次被访问时整页从XID文件读入，
+ * 之后TM在状态持久化后更新缓存，缓存中的状态和文件一致。
+ * 最多缓存maxPages页，超过时按CLOCK淘汰：访问时标记页面，淘汰时跳过并清除有标记的页面，
+ * 淘汰第一个没有标记的页面。文件中的状态总是先于缓存写入，淘汰的页面之后重新读入时内容不变。
+ */
+class StatusCache {
+    static final int XIDS_PER_PAGE=1<<15;
+    private static final int XIDS_PER_INT=16;
+    private static final int STATUS_BITS=2;
+    private static final int STATUS_MASK=(1<<STATUS_BITS)-1;
+    static final int DEFAULT_MAX_PAGES=256;     // 默认最多缓存256页(2M)，8M个事务的状态
+
+    private static class Page {
+        final AtomicIntegerArray words=new AtomicIntegerArray(XIDS_PER_PAGE/XIDS_PER_INT);
+        volatile boolean referenced;            // 读入之后、上一次淘汰扫描之后再次被访问过，只访问过一次的页面先被淘汰
+    }
+
+    private ConcurrentHashMap<Long,Page> pages;
+    private LongFunction<byte[]> loader;    // 读入一页的状态，文件中没有的部分为0，即正在进行
+    private int maxPages;
+    private final Object evictLock=new Object();
+
+    StatusCache(LongFunction<byte[]> loader) {
+        this(loader,DEFAULT_MAX_PAGES);
+    }
+
+    StatusCache(LongFunction<byte[]> loader,int maxPages) {
+        this.pages=new ConcurrentHashMap<>();
+        this.loader=loader;
+        this.maxPages=Math.max(2,maxPages);
+    }
+
+    byte get(long xid){
+        long i=xid-1;
+        int slot=(int)(i%XIDS_PER_PAGE);
+        int word=page(i/XIDS_PER_PAGE).get(slot/XIDS_PER_INT);
+        return (byte)((word>>>shift(slot))&STATUS_MASK);
+    }
+
+    void set(long xid,byte status){
+        long i=xid-1;
+        int slot=(int)(i%XIDS_PER_PAGE);
+        AtomicIntegerArray page=page(i/XIDS_PER_PAGE);
+        int shift=shift(slot);
+        while(true){
+            int word=page.get(slot/XIDS_PER_INT);
+            int updated=(word&~(STATUS_MASK<<shift))|((status&STATUS_MASK)<<shift);
+            if (page.compareAndSet(slot/XIDS_PER_INT,word,updated)) return;
+        }
+    }
+
+    // 丢弃只包含frozenXid及之前的事务的页
+    void discard(long frozenXid){
+        pages.keySet().removeIf(p -> (p+1)*XIDS_PER_PAGE<=frozenXid);
+    }
+
+    // 当前缓存的页数
+    int size(){
+        return pages.size();
+    }
+
+    // 读入页面期间同一页的其他访问会等待，不会有更新落在读入之前的旧内容上。
+    // 已经标记的页面不再写标记，并发读同一页时不会争用缓存行
+    private AtomicIntegerArray page(long pageNo){
+        Page page=pages.get(pageNo);
+        if (page!=null){
+            if (!page.referenced) page.referenced=true;
+            return page.words;
+        }
+        page=pages.computeIfAbsent(pageNo,p -> {
+            byte[] raw=loader.apply(p);
+            Page loaded=new Page();
+            AtomicIntegerArray words=loaded.words;
+            for (int slot=0;slot<raw.length;slot++){
+                if (raw[slot]!=0){
+                    words.set(slot/XIDS_PER_INT,words.get(slot/XIDS_PER_INT)|((raw[slot]&STATUS_MASK)<<shift(slot)));
+                }
+            }
+            return loaded;
+        });
+        if (pages.size()>maxPages){
+            evict(pageNo);
+        }
+        return page.words;
+    }
+
+    // 淘汰页面直到不超过maxPages，不淘汰刚读入的keep。每一轮扫描清除所有标记，最多两轮就能淘汰一页
+    private void evict(long keep){
+        synchronized (evictLock){
+            while(pages.size()>maxPages){
+                boolean evicted=false;
+                for (int pass=0;pass<2 && !evicted;pass++){
+                    for (Map.Entry<Long,Page> e:pages.entrySet()){
+                        if (e.getKey()==keep) continue;
+                        Page page=e.getValue();
+                        if (page.referenced){
+                            page.referenced=false;
+                        } else if (pages.remove(e.getKey(),page)){
+                            evicted=true;
+                            break;
+                        }
+                    }
+                }
+                if (!evicted) return;
+            }
+        }
+    }
+
+    private static int shift(int slot){
+        return (slot%XIDS_PER_INT)*STATUS_BITS;
+    }
+}
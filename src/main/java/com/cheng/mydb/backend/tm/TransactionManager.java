@@ -1,11 +1,20 @@
 package com.cheng.mydb.backend.tm;
 
+import java.util.function.LongConsumer;
+
 public interface TransactionManager {
     long begin();                       // 开启一个新事务
     void commit(long xid);              // 提交一个事务
+    void commitAsync(long xid);         // 提交一个事务，不等待持久化，崩溃时可能丢失最近一个异步窗口内的提交
     void abort(long xid);               // 取消一个事务
     boolean isActive(long xid);         // 查询一个事务的状态是否是正在进行的状态
     boolean isCommitted(long xid);      // 查询一个事务的状态是否是已提交
     boolean isAborted(long xid);        // 查询一个事务的状态是否是已取消
+    void sync();                        // 把异步提交还没写入的事务状态写入XID文件并持久化
+    void setLogFlusher(Runnable flusher);               // 事务状态写入文件之前调用，持久化已经写入的日志
+    void setLogPublisher(LongConsumer publisher);       // 事务结束时调用，把事务缓冲的日志写入日志
+    void setAsyncWindow(long millis, int maxPending);   // 异步提交最多延迟millis毫秒或者积累maxPending个后写入
+    long nextXID();                     // 下一个begin()分配的xid
+    void freeze(long horizon);          // horizon之前的事务都已结束且不再被引用，丢弃它们的状态，之后查询时视为已提交
     void close();                       // 关闭TM
 }
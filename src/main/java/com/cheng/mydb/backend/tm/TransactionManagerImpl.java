@@ -1,28 +1,63 @@
 package com.cheng.mydb.backend.tm;
 
 import com.cheng.mydb.backend.utils.Panic;
-import com.cheng.mydb.backend.utils.Parser;
 import com.cheng.mydb.common.Error;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 /**
- * TM用来维护一个 XID 格式的文件
- * 前8个字节为头，记录这个 XID 文件管理的事务的个数，每个事务状态占1字节
+ * TM用来维护一个 XID 格式的文件，文件结构如下：
+ * [Magic] [Reserved] [XidCounter] [FrozenXid] [Status...]
+ * Magic 4字节，Reserved 4字节，XidCounter 8字节为这个 XID 文件管理的事务的个数，
+ * FrozenXid 8字节，不超过它的事务已经被freeze，文件中不再保存它们的状态，查询时都视为已提交。
+ * 之后每个事务状态占2位，一个字节放4个事务，xid=FrozenXid+1在第一个字节的最低两位。
+ * 文件通过内存映射访问，按EXTENT_SIZE整块扩展，扩展部分全为0，即正在进行的状态。
+ * 旧格式的文件（8字节的XidCounter，之后每个事务1字节）在打开时转换成新格式。
+ * XidCounter记录的是已经预留的事务数，begin()从预留的范围中分配xid，用完时才再预留XID_RESERVE个并fsync。
+ * 崩溃后预留了但没有用到的xid一直是正在进行的状态，没有日志引用它们，不影响恢复。
+ * 提交和回滚的状态写入映射后，并发的事务共享同一次fsync。
+ * 事务状态缓存在StatusCache中，查询状态只读内存
+ *
+ * 异步提交：commitAsync()只把提交状态记录在内存中就返回，由xid-flusher线程每隔asyncMillis，
+ * 或者积累了asyncMaxPending个之后，先持久化日志，再批量写入XID文件并fsync一次。
+ * 崩溃时最多丢失最近asyncMillis内异步提交的事务，它们恢复后是未完成的状态，会被回滚；
+ * 提交状态总是在日志之后落盘，不会出现提交了但是修改只恢复了一部分的事务。
+ * 同步提交之前先写入之前的异步提交，恢复后不会出现后提交的事务还在、先提交的事务丢失的情况。
  */
 public class TransactionManagerImpl implements TransactionManager {
+    // XID文件格式标识，旧格式文件的开头是事务个数，第一个字节总是0
+    static final int XID_MAGIC=0x58494433;
+    static final byte OFFSET_MAGIC=0;
+    static final byte OFFSET_COUNTER=OFFSET_MAGIC+8;
     // XID文件头长度
-    static final byte XID_HEADER_LENGTH=8;
-    // 每个事务的占用长度
-    private static final byte XID_FIELD_SIZE=1;
+    static final byte OFFSET_FROZEN=OFFSET_COUNTER+8;
+    static final byte XID_HEADER_LENGTH=OFFSET_FROZEN+8;
+    // 每个事务的状态占2位，一个字节放4个事务
+    static final int XIDS_PER_BYTE=4;
+    private static final int STATUS_BITS=2;
+    private static final int STATUS_MASK=(1<<STATUS_BITS)-1;
+    // XID文件每次扩展1M，可以放4M个事务
+    static final int EXTENT_SIZE=1<<20;
+    // 旧格式的文件头长度和每个事务的占用长度
+    private static final byte OLD_HEADER_LENGTH=8;
+    private static final byte OLD_FIELD_SIZE=1;
     // 事务的三种状态
     private static final byte FIELD_TRAN_ACTIVE=0;
     private static final byte FIELD_TRAN_COMMITED=1;
@@ -31,11 +66,41 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final byte SUPER_XID = 0;
     // XID 文件后缀
     static final String XID_SUFFIX = ".xid";
+    // 转换格式和freeze之后重写文件时的临时文件后缀
+    private static final String MIGRATE_SUFFIX = ".xid.tmp";
+    // 每次预留的xid个数
+    static final int XID_RESERVE=1024;
+    // 异步提交默认的最长延迟(ms)和最多积累的事务数
+    public static final long DEFAULT_ASYNC_MILLIS = 10;
+    public static final int DEFAULT_ASYNC_MAX_PENDING = 1024;
 
+    private String path;
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private volatile MappedByteBuffer map;  // 映射整个XID文件，扩展文件后重新映射
+    private long xidCounter;            // 已经分配的最大的xid
+    private long reservedXid;           // 文件头中的XidCounter，这之前的xid都可能已经分配
+    private volatile long frozenXid;    // 文件头中的FrozenXid，总是XIDS_PER_BYTE的倍数
     private Lock lock;
+    private Lock statusLock;            // 一个字节中有4个事务的状态，修改字节时需要加锁
+    private AtomicLong writtenSeq;      // 已经写入映射的状态修改数
+    private long forcedSeq;             // 已经持久化的状态修改数
+    private boolean forcing;            // 有线程正在fsync
+    private Lock forceLock;
+    private Condition forced;           // forcedSeq前进
+    private StatusCache statusCache;    // 已经写入XID文件的事务状态
+
+    private ConcurrentHashMap<Long,Byte> unsynced;  // 还没写入XID文件的事务状态
+    private volatile Runnable logFlusher;
+    private volatile LongConsumer logPublisher;
+    private long asyncMillis=DEFAULT_ASYNC_MILLIS;
+    private int asyncMaxPending=DEFAULT_ASYNC_MAX_PENDING;
+    private Lock syncLock;              // 同一时间只有一个线程写入unsynced中的状态
+    private Lock asyncLock;             // 保护异步刷盘线程的启动和唤醒
+    private Condition asyncPending;     // 有新的异步提交
+    private Condition asyncFull;        // 积累的异步提交达到asyncMaxPending
+    private Thread asyncFlusher;
+    private boolean closing;
 
     // 创建一个 XID 文件并创建 TM
     public static TransactionManagerImpl create(String path){
@@ -60,17 +125,13 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(e);
         }
 
-        ByteBuffer buf=ByteBuffer.wrap(new byte[XID_HEADER_LENGTH]);
-        try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return new TransactionManagerImpl(raf,fc);
+        writeHeader(fc,0,0);
+        TransactionManagerImpl tm=new TransactionManagerImpl(raf,fc);
+        tm.path=path;
+        return tm;
     }
 
-    // 从一个已有的 XID 文件来创建 TM
+    // 从一个已有的 XID 文件来创建 TM，旧格式的文件先转换成新格式
     public static TransactionManagerImpl open(String path){
         File file=new File(path+XID_SUFFIX);
         if (!file.exists()){
@@ -90,119 +151,456 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf,fc);
+        if (!isCurrentFormat(fc)){
+            try {
+                fc.close();
+                raf.close();
+                migrate(path);
+                raf=new RandomAccessFile(file,"rw");
+                fc=raf.getChannel();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        TransactionManagerImpl tm=new TransactionManagerImpl(raf,fc);
+        tm.path=path;
+        return tm;
+    }
+
+    // 写入新格式的文件头，文件至少有一个EXTENT_SIZE
+    private static void writeHeader(FileChannel fc, long xidCounter, long frozenXid){
+        ByteBuffer buf=ByteBuffer.allocate(XID_HEADER_LENGTH);
+        buf.putInt(OFFSET_MAGIC,XID_MAGIC);
+        buf.putLong(OFFSET_COUNTER,xidCounter);
+        buf.putLong(OFFSET_FROZEN,frozenXid);
+        try {
+            fc.write(buf,0);
+            if (fc.size()<XID_HEADER_LENGTH+EXTENT_SIZE){
+                fc.write(ByteBuffer.allocate(1),XID_HEADER_LENGTH+EXTENT_SIZE-1);
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static boolean isCurrentFormat(FileChannel fc){
+        ByteBuffer buf=ByteBuffer.allocate(4);
+        try {
+            fc.read(buf,OFFSET_MAGIC);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.getInt(0)==XID_MAGIC;
+    }
+
+    /**
+     * 把旧格式的XID文件转换成新格式：先写到临时文件并持久化，再原子地替换原文件。
+     * 替换之前崩溃时原文件不变，下次打开时重新转换
+     */
+    private static void migrate(String path) throws IOException {
+        File old=new File(path+XID_SUFFIX);
+        File tmp=new File(path+MIGRATE_SUFFIX);
+        try (RandomAccessFile src=new RandomAccessFile(old,"r");
+             RandomAccessFile dst=new RandomAccessFile(tmp,"rw")) {
+            FileChannel in=src.getChannel();
+            FileChannel out=dst.getChannel();
+            out.truncate(0);
+
+            ByteBuffer header=ByteBuffer.allocate(OLD_HEADER_LENGTH);
+            in.read(header,0);
+            long xidCounter=header.getLong(0);
+            if (in.size()!=OLD_HEADER_LENGTH+xidCounter*OLD_FIELD_SIZE){
+                Panic.panic(Error.BadXIDFileException);
+            }
+
+            writeHeader(out,xidCounter,0);
+            ByteBuffer oldStatus=ByteBuffer.allocate(EXTENT_SIZE);
+            ByteBuffer newStatus=ByteBuffer.allocate(EXTENT_SIZE/XIDS_PER_BYTE);
+            long xid=1;
+            while(xid<=xidCounter){
+                oldStatus.clear();
+                oldStatus.limit((int)Math.min(EXTENT_SIZE,xidCounter-xid+1));
+                while(oldStatus.hasRemaining()){
+                    if (in.read(oldStatus,getOldXidPosition(xid)+oldStatus.position())<0){
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+                int n=oldStatus.position();
+                newStatus.clear();
+                for (int i=0;i<n;i+=XIDS_PER_BYTE){
+                    int b=0;
+                    for (int j=0;j<XIDS_PER_BYTE && i+j<n;j++){
+                        b|=(oldStatus.get(i+j)&STATUS_MASK)<<(j*STATUS_BITS);
+                    }
+                    newStatus.put((byte)b);
+                }
+                newStatus.flip();
+                long offset=getXidPosition(xid,0);
+                while(newStatus.hasRemaining()){
+                    out.write(newStatus,offset+newStatus.position());
+                }
+                xid+=n;
+            }
+            out.force(false);
+        }
+        Files.move(tmp.toPath(),old.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
     }
 
     public TransactionManagerImpl(RandomAccessFile file, FileChannel fc) {
         this.file=file;
         this.fc=fc;
         lock=new ReentrantLock();
+        statusLock=new ReentrantLock();
+        writtenSeq=new AtomicLong();
+        forceLock=new ReentrantLock();
+        forced=forceLock.newCondition();
+        statusCache=new StatusCache(this::loadStatusPage);
+        unsynced=new ConcurrentHashMap<>();
+        syncLock=new ReentrantLock();
+        asyncLock=new ReentrantLock();
+        asyncPending=asyncLock.newCondition();
+        asyncFull=asyncLock.newCondition();
         checkXIDCounter();
     }
 
-    // 检验XID文件中事务数量是否正常
+    // 检验XID文件中事务数量是否正常，并映射整个文件
     private void checkXIDCounter(){
         long fileLen=0;
         try {
             fileLen=file.length();
         } catch (IOException e) {
-            e.printStackTrace();
+            Panic.panic(e);
         }
 
-        if (fileLen<XID_HEADER_LENGTH){
+        if (fileLen<XID_HEADER_LENGTH || !isCurrentFormat(fc)){
             Panic.panic(Error.BadXIDFileException);
         }
 
-        ByteBuffer buf=ByteBuffer.allocate(XID_HEADER_LENGTH);
         try {
-            fc.position(0);
-            fc.read(buf);
+            map=fc.map(FileChannel.MapMode.READ_WRITE,0,fileLen);
         } catch (IOException e) {
-            e.printStackTrace();
+            Panic.panic(e);
         }
-
-        xidCounter=Parser.parseLong(buf.array());
-        long end=getXidPosition(xidCounter);
-        if (end!=fileLen-1){
+        xidCounter=map.getLong(OFFSET_COUNTER);
+        frozenXid=map.getLong(OFFSET_FROZEN);
+        if (frozenXid<0 || frozenXid%XIDS_PER_BYTE!=0 || xidCounter<frozenXid
+                || getXidPosition(xidCounter)>=fileLen){
             Panic.panic(Error.BadXIDFileException);
         }
+        reservedXid=xidCounter;
     }
 
-    //　根据事务ID获取其在XID文件中的偏移量
+    //　根据事务ID获取其状态所在字节在XID文件中的偏移量，xid需要大于frozenXid
     private long getXidPosition(long xid){
-        // 0-7字节为头部，xid=1从第8字节开始（xid=0不计算在内）
-        return XID_HEADER_LENGTH+(xid-1)*XID_FIELD_SIZE;
+        return getXidPosition(xid,frozenXid);
+    }
+
+    private static long getXidPosition(long xid, long frozenXid){
+        // 0-23字节为头部，xid=frozenXid+1从第24字节开始
+        return XID_HEADER_LENGTH+(xid-1-frozenXid)/XIDS_PER_BYTE;
+    }
+
+    // 事务状态在字节中的位置
+    private static int getXidShift(long xid){
+        return (int)((xid-1)%XIDS_PER_BYTE)*STATUS_BITS;
     }
 
+    private static long getOldXidPosition(long xid){
+        return OLD_HEADER_LENGTH+(xid-1)*OLD_FIELD_SIZE;
+    }
+
+    // 新事务的状态在扩展文件时已经是0，预留的xid没用完时不需要写文件
     public long begin() {
         lock.lock();
         try{
-            long xid=xidCounter+1;
-            updateXID(xid,FIELD_TRAN_ACTIVE);
-            incXIDCounter();
-            return xid;
+            if (xidCounter==reservedXid){
+                reserveXID();
+            }
+            xidCounter++;
+            return xidCounter;
         } finally {
-            lock.unlock();;
+            lock.unlock();
         }
     }
 
-    // 更新XID文件中事务状态
-    private void updateXID(long xid, byte status) {
-        long offset=getXidPosition(xid);
-        byte[] temp=new byte[XID_FIELD_SIZE];
-        temp[0]=status;
-        ByteBuffer buf=ByteBuffer.wrap(temp);
+    // 文件放不下xid的状态时扩展一个EXTENT_SIZE并重新映射，持有lock时调用
+    private void ensureCapacity(long xid) {
+        long position=getXidPosition(xid);
+        if (position<map.capacity()) return;
+        long length=map.capacity()+EXTENT_SIZE;
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(ByteBuffer.allocate(1),length-1);
+            fc.force(false);
+            map=fc.map(FileChannel.MapMode.READ_WRITE,0,length);
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
+
+    // 更新XID文件中事务状态，持久化之后再更新缓存
+    private void updateXID(long xid, byte status) {
+        forceXID(writeXID(xid,status));
+        statusCache.set(xid,status);
+    }
 
+    /**
+     * 等待第seq次状态修改持久化。同一时间只有一个线程fsync，它开始前写入的修改都被这次fsync覆盖，
+     * 期间到达的线程等它结束后由其中一个再fsync一次，并发的提交共享同一次fsync
+     */
+    private void forceXID(long seq) {
+        forceLock.lock();
         try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while(forcedSeq<seq){
+                if (forcing){
+                    forced.awaitUninterruptibly();
+                    continue;
+                }
+                forcing=true;
+                long target=writtenSeq.get();
+                forceLock.unlock();
+                try {
+                    map.force();
+                } finally {
+                    forceLock.lock();
+                    forcing=false;
+                }
+                forcedSeq=Math.max(forcedSeq,target);
+                forced.signalAll();
+            }
+        } finally {
+            forceLock.unlock();
         }
     }
 
-    // 事务计数加1，同时修改XID文件的头
-    private void incXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf=ByteBuffer.wrap(Parser.long2Bytes(xidCounter));
+    // 从XID文件读入缓存的第pageNo页，超出文件的部分是还没开始的事务。
+    // freeze时会同时替换map和frozenXid，读入时需要加statusLock
+    private byte[] loadStatusPage(long pageNo) {
+        byte[] raw=new byte[StatusCache.XIDS_PER_PAGE];
+        long first=pageNo*StatusCache.XIDS_PER_PAGE+1;
+        statusLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            MappedByteBuffer m=map;
+            for (int slot=0;slot<raw.length;slot++){
+                if (first+slot<=frozenXid) continue;
+                long position=getXidPosition(first+slot);
+                if (position>=m.capacity()) break;
+                raw[slot]=(byte)((m.get((int)position)>>>getXidShift(first+slot))&STATUS_MASK);
+            }
+        } finally {
+            statusLock.unlock();
         }
+        return raw;
+    }
 
+    // 写入事务状态，不fsync，返回这次修改的序号。同一字节中的其他事务可能同时被修改，读改写需要加锁
+    private long writeXID(long xid, byte status) {
+        int shift=getXidShift(xid);
+        statusLock.lock();
         try {
-            fc.force(false);
+            int position=(int)getXidPosition(xid);
+            MappedByteBuffer m=map;
+            int b=m.get(position);
+            b=(b&~(STATUS_MASK<<shift))|((status&STATUS_MASK)<<shift);
+            m.put(position,(byte)b);
+            return writtenSeq.incrementAndGet();
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    public long nextXID() {
+        lock.lock();
+        try {
+            return xidCounter+1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * horizon之前的事务都已经结束，上层已经去掉了数据中对它们的引用，丢弃它们的状态。
+     * 先持久化日志（包括上层freeze时对数据的修改）和异步提交的状态，再把之后的状态写到临时文件，
+     * 原子地替换XID文件。替换之前崩溃时原文件不变，数据中的修改由日志恢复。
+     */
+    public void freeze(long horizon) {
+        long frozen=(horizon-1)/XIDS_PER_BYTE*XIDS_PER_BYTE;
+        if (frozen<=frozenXid) return;
+        syncUnsynced();
+        flushLog();
+        lock.lock();
+        syncLock.lock();
+        statusLock.lock();
+        try {
+            if (frozen<=frozenXid || frozen>xidCounter) return;
+            rewrite(frozen);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            statusLock.unlock();
+            syncLock.unlock();
+            lock.unlock();
         }
+        statusCache.discard(frozen);
+    }
+
+    // 把frozen之后的状态写到新的XID文件并替换原文件，之后重新映射。持有lock、syncLock和statusLock时调用
+    private void rewrite(long frozen) throws IOException {
+        File xidFile=new File(path+XID_SUFFIX);
+        File tmp=new File(path+MIGRATE_SUFFIX);
+        try (RandomAccessFile raf=new RandomAccessFile(tmp,"rw")) {
+            FileChannel out=raf.getChannel();
+            out.truncate(0);
+            writeHeader(out,reservedXid,frozen);
+            ByteBuffer src=map.duplicate();
+            int start=(int)getXidPosition(frozen+1);
+            src.limit((int)getXidPosition(reservedXid)+1);
+            src.position(start);
+            while(src.hasRemaining()){
+                out.write(src,getXidPosition(frozen+1,frozen)+src.position()-start);
+            }
+            out.force(false);
+        }
+        fc.close();
+        file.close();
+        Files.move(tmp.toPath(),xidFile.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        file=new RandomAccessFile(xidFile,"rw");
+        fc=file.getChannel();
+        map=fc.map(FileChannel.MapMode.READ_WRITE,0,fc.size());
+        frozenXid=frozen;
+    }
+
+    // 再预留XID_RESERVE个xid，修改XID文件的头，持有lock时调用
+    private void reserveXID() {
+        ensureCapacity(reservedXid+XID_RESERVE);
+        reservedXid+=XID_RESERVE;
+        map.putLong(OFFSET_COUNTER,reservedXid);
+        forceXID(writtenSeq.incrementAndGet());
     }
 
 
     public void commit(long xid) {
+        publishLog(xid);
+        syncUnsynced();
+        flushLog();
         updateXID(xid,FIELD_TRAN_COMMITED);
     }
 
+    public void commitAsync(long xid) {
+        publishLog(xid);
+        unsynced.put(xid,FIELD_TRAN_COMMITED);
+        asyncLock.lock();
+        try {
+            if (asyncFlusher==null){
+                asyncFlusher=new Thread(this::asyncFlushLoop,"xid-flusher");
+                asyncFlusher.setDaemon(true);
+                asyncFlusher.start();
+            }
+            asyncPending.signal();
+            if (unsynced.size()>=asyncMaxPending){
+                asyncFull.signal();
+            }
+        } finally {
+            asyncLock.unlock();
+        }
+    }
+
+    public void sync() {
+        syncUnsynced();
+    }
+
+    public void setLogFlusher(Runnable flusher) {
+        this.logFlusher=flusher;
+    }
+
+    public void setAsyncWindow(long millis, int maxPending) {
+        asyncLock.lock();
+        try {
+            asyncMillis=millis;
+            asyncMaxPending=maxPending;
+        } finally {
+            asyncLock.unlock();
+        }
+    }
+
+    public void setLogPublisher(LongConsumer publisher) {
+        this.logPublisher=publisher;
+    }
+
+    // 事务的日志要在它的状态之前写入日志
+    private void publishLog(long xid) {
+        LongConsumer publisher=logPublisher;
+        if (publisher!=null){
+            publisher.accept(xid);
+        }
+    }
+
+    private void flushLog() {
+        Runnable flusher=logFlusher;
+        if (flusher!=null){
+            flusher.run();
+        }
+    }
+
+    // 异步刷盘线程：有异步提交之后再等待一个窗口，积累的提交足够多时提前被唤醒
+    private void asyncFlushLoop() {
+        while(true){
+            boolean exit;
+            asyncLock.lock();
+            try {
+                while(!closing && unsynced.isEmpty()){
+                    asyncPending.awaitUninterruptibly();
+                }
+                if (!closing && unsynced.size()<asyncMaxPending){
+                    asyncFull.await(asyncMillis,TimeUnit.MILLISECONDS);
+                }
+                exit=closing;
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+                return;
+            } finally {
+                asyncLock.unlock();
+            }
+            syncUnsynced();
+            if (exit) return;
+        }
+    }
+
+    // 先持久化日志，再把异步提交的状态写入XID文件，整批只fsync一次
+    private void syncUnsynced() {
+        if (unsynced.isEmpty()) return;
+        syncLock.lock();
+        try {
+            Map<Long,Byte> batch=new HashMap<>(unsynced);
+            if (batch.isEmpty()) return;
+            flushLog();
+            for (Map.Entry<Long,Byte> e:batch.entrySet()){
+                writeXID(e.getKey(),e.getValue());
+            }
+            forceXID(writtenSeq.get());
+            for (Map.Entry<Long,Byte> e:batch.entrySet()){
+                statusCache.set(e.getKey(),e.getValue());
+                unsynced.remove(e.getKey(),e.getValue());
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
     public void abort(long xid) {
+        publishLog(xid);
         updateXID(xid,FIELD_TRAN_ABORTED);
     }
 
     private boolean checkXIDStatus(long xid,byte status){
-        long offset = getXidPosition(xid);
-        ByteBuffer buf=ByteBuffer.allocate(XID_FIELD_SIZE);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+        if (xid<=frozenXid){
+            return status==FIELD_TRAN_COMMITED;
+        }
+        Byte pending=unsynced.get(xid);
+        if (pending!=null){
+            return pending==status;
         }
-        return buf.array()[0]==status;
+        return statusCache.get(xid)==status;
     }
 
     public boolean isActive(long xid) {
@@ -220,7 +618,26 @@ public class TransactionManagerImpl implements TransactionManager {
         return checkXIDStatus(xid,FIELD_TRAN_ABORTED);
     }
 
+    // 先写入还没持久化的异步提交再关闭
     public void close() {
+        Thread flusher;
+        asyncLock.lock();
+        try {
+            closing=true;
+            asyncPending.signal();
+            asyncFull.signal();
+            flusher=asyncFlusher;
+        } finally {
+            asyncLock.unlock();
+        }
+        if (flusher!=null){
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        syncUnsynced();
         try {
             fc.close();
             file.close();
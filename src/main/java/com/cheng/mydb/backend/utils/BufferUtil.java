@@ -0,0 +1,40 @@
+package com.cheng.mydb.backend.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 以绝对下标读写页面缓冲区的工具类
+ * 页面缓冲区被多个线程共享，所有操作都不修改原缓冲区的position和limit
+ */
+public class BufferUtil {
+
+    // 将src写入buf中index开始的位置
+    public static void put(ByteBuffer buf,int index,byte[] src){
+        put(buf,index,src,0,src.length);
+    }
+
+    public static void put(ByteBuffer buf,int index,byte[] src,int offset,int length){
+        ByteBuffer dup=buf.duplicate();
+        dup.position(index);
+        dup.put(src,offset,length);
+    }
+
+    // 将buf中index开始的dst.length个字节读入dst
+    public static void get(ByteBuffer buf,int index,byte[] dst){
+        ByteBuffer dup=buf.duplicate();
+        dup.position(index);
+        dup.get(dst);
+    }
+
+    // 以拷贝的形式返回buf中[from,to)的内容
+    public static byte[] copyOfRange(ByteBuffer buf,int from,int to){
+        byte[] res=new byte[to-from];
+        get(buf,from,res);
+        return res;
+    }
+
+    // 复制length个字节，src和dst是同一缓冲区且区间重叠时也能得到正确的结果
+    public static void copy(ByteBuffer src,int srcIndex,ByteBuffer dst,int dstIndex,int length){
+        put(dst,dstIndex,copyOfRange(src,srcIndex,srcIndex+length));
+    }
+}
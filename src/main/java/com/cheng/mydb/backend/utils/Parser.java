@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 
 public class Parser {
     public static byte[] int2Bytes(long value){
-        return ByteBuffer.allocate(Integer.SIZE/Byte.SIZE).putLong(value).array();
+        return ByteBuffer.allocate(Integer.SIZE/Byte.SIZE).putInt((int)value).array();
     }
 
     public static byte[] long2Bytes(long value){
@@ -2,11 +2,12 @@ package com.cheng.mydb.backend.vm;
 
 import com.cheng.mydb.backend.common.SubArray;
 import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
+import com.cheng.mydb.backend.utils.BufferUtil;
 import com.cheng.mydb.backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
-
 /**
  * VM向上层抽象出entry
  * entry结构：
@@ -32,8 +33,10 @@ public class Entry {
         return entry;
     }
 
+    // freeze之后不可见的版本被标记为非法，这时返回null
     public static Entry loadEntry(VersionManager vm,long uid) throws Exception {
         DataItem di=((VersionManagerImpl)vm).dm.read(uid);
+        if (di==null) return null;
         return newEntry(vm,di,uid);
     }
 
@@ -56,9 +59,7 @@ public class Entry {
         dataItem.rLock();
         try{
             SubArray sa = dataItem.data();
-            byte[] data=new byte[sa.end-sa.start-OFFSET_DATA];
-            System.arraycopy(sa.raw,sa.start+OFFSET_DATA,data,0,data.length);
-            return data;
+            return BufferUtil.copyOfRange(sa.raw,sa.start+OFFSET_DATA,sa.end);
         }
         finally {
             dataItem.rUnLock();
@@ -69,7 +70,7 @@ public class Entry {
         dataItem.rLock();
         try{
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start+OFFSET_XMIN,sa.start+OFFSET_XMAX));
+            return sa.raw.getLong(sa.start+OFFSET_XMIN);
         }
         finally {
             dataItem.rUnLock();
@@ -80,24 +81,61 @@ public class Entry {
         dataItem.rLock();
         try{
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start+OFFSET_XMAX,sa.start+OFFSET_DATA));
+            return sa.raw.getLong(sa.start+OFFSET_XMAX);
         }
         finally {
             dataItem.rUnLock();
         }
     }
 
+    // 原来的XMAX是回滚了的事务时先以SUPER_XID清零，这个事务的日志中的前相就不会引用它，
+    // 崩溃恢复undo时不会恢复出freeze之后已经被TM丢弃状态的xid
     public void setXMAX(long xid){
+        clearAbortedXMAX();
         dataItem.before();
         try{
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Bytes(xid),0,sa.raw,sa.start+OFFSET_XMAX,8);
+            sa.raw.putLong(sa.start+OFFSET_XMAX,xid);
         }
         finally {
             dataItem.after(xid);
         }
     }
 
+    private void clearAbortedXMAX(){
+        long xmax=getXMAX();
+        TransactionManager tm=((VersionManagerImpl)vm).tm;
+        if (xmax==0 || !tm.isAborted(xmax)) return;
+        dataItem.before();
+        SubArray sa = dataItem.data();
+        sa.raw.putLong(sa.start+OFFSET_XMAX,0);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    /**
+     * 去掉对horizon之前的事务的引用，这些事务都已经结束，之后它们的状态会被TM丢弃：
+     * XMIN已提交的改为SUPER_XID；XMAX未提交的改为0；XMIN未提交或者XMAX已提交的版本对所有事务都不可见，标记为非法。
+     * 修改以SUPER_XID记录日志，不会被undo
+     */
+    public void freeze(TransactionManager tm,long horizon){
+        if (!needFreeze(getXMIN(),horizon) && !needFreeze(getXMAX(),horizon)) return;
+        dataItem.before();
+        SubArray sa = dataItem.data();
+        long xmin=sa.raw.getLong(sa.start+OFFSET_XMIN);
+        long xmax=sa.raw.getLong(sa.start+OFFSET_XMAX);
+        if ((needFreeze(xmin,horizon) && !tm.isCommitted(xmin)) || (needFreeze(xmax,horizon) && tm.isCommitted(xmax))){
+            dataItem.setInvalid();
+        } else {
+            if (needFreeze(xmin,horizon)) sa.raw.putLong(sa.start+OFFSET_XMIN,TransactionManagerImpl.SUPER_XID);
+            if (needFreeze(xmax,horizon)) sa.raw.putLong(sa.start+OFFSET_XMAX,0);
+        }
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    private static boolean needFreeze(long xid,long horizon){
+        return xid!=TransactionManagerImpl.SUPER_XID && xid<horizon;
+    }
+
     public long getUid(){
         return uid;
     }
@@ -74,6 +74,7 @@ public class LockTable {
     private void selectNewXID(long uid) {
         u2x.remove(uid);
         List<Long> list=wait.get(uid);
+        if (list==null) return;     // 没有等待这个uid的事务
         assert list.size()>0;
         while(list.size()>0){
             long xid=list.remove(0);
@@ -1,36 +1,34 @@
 package com.cheng.mydb.backend.vm;
 
-import com.cheng.mydb.backend.tm.TransactionManager;
-import com.cheng.mydb.backend.tm.TransactionManagerImpl;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 // vm对一个事务的抽象
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long,Boolean> snapshot;
+    public long[] snapshot;     // 开始时正在进行的事务，升序
+    public long xmin;           // snapshot中最小的xid，为空时是xid本身，更早的事务在开始时都已经结束
     public Exception err;
     public boolean autoAborted;
+    public boolean asyncCommit;
 
-    public static Transaction newTransaction(long xid,int level,Map<Long,Transaction> active){
+    // active的前count个是正在进行的事务，升序。快照只需要复制一次数组
+    public static Transaction newTransaction(long xid,int level,long[] active,int count){
         Transaction t=new Transaction();
         t.xid=xid;
         t.level=level;
         if (level!=0){
-            t.snapshot=new HashMap<>();
-            for (Long x:active.keySet()){
-                t.snapshot.put(x,true);
-            }
+            t.snapshot=Arrays.copyOf(active,count);
+            t.xmin=count>0?active[0]:xid;
         }
         return t;
     }
 
+    // 早于xmin的事务在开始时已经结束，不早于xid的事务在之后才开始，都不在快照中；SUPER_XID总是小于xmin
     public boolean isInSnapshot(long xid){
-        if (xid== TransactionManagerImpl.SUPER_XID){
+        if (xid<xmin || xid>=this.xid){
             return false;
         }
-        return snapshot.containsKey(xid);
+        return Arrays.binarySearch(snapshot,xid)>=0;
     }
 }
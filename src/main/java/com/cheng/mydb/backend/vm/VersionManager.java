@@ -6,6 +6,8 @@ public interface VersionManager {
     boolean delete(long xid, long uid) throws Exception;
 
     long begin(int level);
+    long begin(int level, boolean asyncCommit);     // asyncCommit的事务提交时不等待持久化
     void commit(long xid) throws Exception;
     void abort(long xid);
+    long freeze();      // 丢弃已经对所有事务可见或不可见的事务的状态，返回之前的事务都被freeze的xid
 }
@@ -7,6 +7,7 @@ import com.cheng.mydb.backend.tm.TransactionManagerImpl;
 import com.cheng.mydb.backend.utils.Panic;
 import com.cheng.mydb.common.Error;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
@@ -17,6 +18,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     DataManager dm;
     Lock lock;
     Map<Long,Transaction> activateTransaction;
+    // activateTransaction中除SUPER_XID以外的xid，升序，新事务开始时直接复制作为快照
+    long[] activeXids;
+    int activeCount;
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
@@ -27,7 +31,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lt = new LockTable();
         activateTransaction = new HashMap<>();
         activateTransaction.put((long)TransactionManagerImpl.SUPER_XID,
-                Transaction.newTransaction(TransactionManagerImpl.SUPER_XID,0,null));
+                Transaction.newTransaction(TransactionManagerImpl.SUPER_XID,0,null,0));
+        activeXids = new long[16];
     }
 
     // read() 方法读取一个 entry，注意判断下可见性即可：
@@ -39,7 +44,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if (t.err!=null){
             throw t.err;
         }
-        Entry entry = super.get(uid);
+        Entry entry = null;
+        try{
+            entry = super.get(uid);
+        } catch (Exception e){
+            if (e== Error.NullEntryException) return null;
+            else throw e;
+        }
         try{
             if (Visibility.isVisible(tm,t,entry)){
                 return entry.data();
@@ -61,7 +72,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid,raw);
+        return dm.insertVersioned(xid,raw);
     }
 
 
@@ -116,11 +127,18 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     // begin() 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照使用：
     @Override
     public long begin(int level) {
+        return begin(level,false);
+    }
+
+    @Override
+    public long begin(int level, boolean asyncCommit) {
         lock.lock();
         try{
             long xid=tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activateTransaction);
+            Transaction t = Transaction.newTransaction(xid, level, activeXids, activeCount);
+            t.asyncCommit=asyncCommit;
             activateTransaction.put(xid,t);
+            addActive(xid);
             return xid;
         } finally {
             lock.unlock();
@@ -142,11 +160,38 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             System.out.println(activateTransaction.keySet());
             Panic.panic(n);
         }
+        // 先修改TM状态再移出activeTransaction，freeze计算horizon时不会漏掉正在提交的事务
+        if (t.asyncCommit){
+            tm.commitAsync(xid);
+        } else {
+            tm.commit(xid);
+        }
         lock.lock();
         activateTransaction.remove(xid);
+        removeActive(xid);
         lock.unlock();
         lt.remove(xid);
-        tm.commit(xid);
+    }
+
+    // 新的xid总是比正在进行的事务大，追加在末尾即可。持有lock时调用
+    private void addActive(long xid) {
+        if (activeCount==activeXids.length){
+            activeXids=Arrays.copyOf(activeXids,activeCount*2);
+        }
+        int i=activeCount;
+        while(i>0 && activeXids[i-1]>xid){
+            activeXids[i]=activeXids[i-1];
+            i--;
+        }
+        activeXids[i]=xid;
+        activeCount++;
+    }
+
+    private void removeActive(long xid) {
+        int i=Arrays.binarySearch(activeXids,0,activeCount,xid);
+        if (i<0) return;
+        System.arraycopy(activeXids,i+1,activeXids,i,activeCount-i-1);
+        activeCount--;
     }
 
     // abort 事务的方法则有两种，手动和自动。手动指的是调用 abort() 方法，
@@ -161,6 +206,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         Transaction t = activateTransaction.get(xid);
         if (!autoAborted){
             activateTransaction.remove(xid);
+            removeActive(xid);
         }
         lock.unlock();
         if (t.autoAborted) return;
@@ -168,6 +214,48 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         tm.abort(xid);
     }
 
+    /**
+     * freeze：找到horizon，之前的事务都已经结束，并且不在任何正在进行的事务的快照中，
+     * 它们的提交对所有事务都可见，回滚对所有事务都不可见。扫描所有Entry去掉对它们的引用，
+     * 之后TM丢弃它们的状态，XID文件只保留horizon之后的部分。返回horizon
+     */
+    @Override
+    public long freeze() {
+        long horizon;
+        lock.lock();
+        try {
+            horizon=tm.nextXID();
+            for (Transaction t:activateTransaction.values()){
+                if (t.xid==TransactionManagerImpl.SUPER_XID) continue;
+                horizon=Math.min(horizon,t.xid);
+                if (t.snapshot!=null){
+                    horizon=Math.min(horizon,t.xmin);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        final long h=horizon;
+        dm.scanVersioned(uid -> freezeEntry(uid,h));
+        tm.freeze(horizon);
+        return horizon;
+    }
+
+    private void freezeEntry(long uid,long horizon){
+        Entry entry=null;
+        try {
+            entry=super.get(uid);
+        } catch (Exception e) {
+            if (e==Error.NullEntryException) return;
+            Panic.panic(e);
+        }
+        try {
+            entry.freeze(tm,horizon);
+        } finally {
+            entry.release();
+        }
+    }
+
     public void releaseForEntry(Entry entry){
         super.release(entry.getUid());
     }
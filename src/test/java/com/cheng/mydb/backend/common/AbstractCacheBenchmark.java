@@ -0,0 +1,73 @@
+package com.cheng.mydb.backend.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AbstractCache命中路径的吞吐量随线程数的变化，不在mvn test中运行，
+ * mvn test-compile后运行 java -cp target/classes:target/test-classes com.cheng.mydb.backend.common.AbstractCacheBenchmark [最大线程数]。
+ * 每个线程在预先读入的KEYS个key上随机get/release，统计每秒完成的次数。
+ */
+public class AbstractCacheBenchmark {
+    private static final int KEYS=1024;
+    private static final long DURATION_MS=2000;
+
+    static class NopCache extends AbstractCache<Long> {
+        NopCache() {
+            super(0);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads=args.length>0?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors()*2;
+        for (int threads=1;threads<=maxThreads;threads*=2){
+            System.out.printf("threads=%d ops/s=%d%n",threads,run(threads));
+        }
+    }
+
+    static long run(int threads) throws Exception {
+        NopCache cache=new NopCache();
+        for (long k=0;k<KEYS;k++){
+            cache.get(k);   // 保持一个引用，测量的是命中路径，不会被驱逐
+        }
+        LongAdder ops=new LongAdder();
+        long deadline=System.currentTimeMillis()+DURATION_MS;
+        List<Thread> workers=new ArrayList<>();
+        for (int t=0;t<threads;t++){
+            Thread w=new Thread(() -> {
+                ThreadLocalRandom random=ThreadLocalRandom.current();
+                long n=0;
+                try {
+                    while(System.currentTimeMillis()<deadline){
+                        for (int i=0;i<1024;i++){
+                            long key=random.nextInt(KEYS);
+                            cache.get(key);
+                            cache.release(key);
+                        }
+                        n+=1024;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                ops.add(n);
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        return ops.sum()*1000/DURATION_MS;
+    }
+}
@@ -0,0 +1,98 @@
+package com.cheng.mydb.backend.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AbstractCacheTest {
+
+    // 数据源是一个map，写回时先睡一会儿，放大写回和重新读入之间的窗口
+    static class Counter {
+        final long key;
+        int value;
+
+        Counter(long key,int value) {
+            this.key=key;
+            this.value=value;
+        }
+    }
+
+    static class CounterCache extends AbstractCache<Counter> {
+        ConcurrentHashMap<Long,Integer> store=new ConcurrentHashMap<>();
+        AtomicInteger loads=new AtomicInteger();
+
+        CounterCache() {
+            super(0);
+        }
+
+        @Override
+        protected Counter getForCache(long key) {
+            loads.incrementAndGet();
+            return new Counter(key,store.getOrDefault(key,0));
+        }
+
+        @Override
+        protected void releaseForCache(Counter obj) {
+            int value;
+            synchronized (obj){
+                value=obj.value;
+            }
+            try {
+                Thread.sleep(0,50000);
+            } catch (InterruptedException ignored) {
+            }
+            store.put(obj.key,value);
+        }
+    }
+
+    static final long KEY=7;
+
+    @Test
+    public void testHitSharesObject() throws Exception {
+        CounterCache cache=new CounterCache();
+        Counter a=cache.get(KEY);
+        Counter b=cache.get(KEY);
+        assertSame(a,b);
+        assertEquals(1,cache.loads.get());
+        cache.release(KEY);
+        cache.release(KEY);
+        cache.get(KEY);
+        assertEquals(2,cache.loads.get());
+    }
+
+    // 引用归零的写回和其他线程的重新读入并发时，不能读到写回之前的内容
+    @Test
+    public void testNoLostUpdateDuringWriteBack() throws Exception {
+        CounterCache cache=new CounterCache();
+        int threads=8;
+        int rounds=2000;
+        List<Thread> workers=new ArrayList<>();
+        for (int t=0;t<threads;t++){
+            Thread w=new Thread(() -> {
+                for (int i=0;i<rounds;i++){
+                    try {
+                        Counter obj=cache.get(KEY);
+                        synchronized (obj){
+                            obj.value++;
+                        }
+                        cache.release(KEY);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        assertEquals(threads*rounds,(int)cache.store.get(KEY));
+    }
+}
@@ -0,0 +1,77 @@
+package com.cheng.mydb.backend.dm;
+
+import com.cheng.mydb.backend.common.SubArray;
+import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointTest {
+    private static final long MEM=1<<22;
+    private static final String OUT_SUFFIX=".out";
+
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    // 子进程：异步提交一个修改过数据的事务，状态还没写入XID文件时checkpoint，然后崩溃
+    public static class Child {
+        public static void main(String[] args) throws Exception {
+            TransactionManager tm=TransactionManagerImpl.create(args[0]);
+            DataManagerImpl dm=(DataManagerImpl) DataManager.create(args[0],MEM,tm);
+            tm.setAsyncWindow(3_600_000,Integer.MAX_VALUE);
+
+            long xid=tm.begin();
+            long uid=dm.insert(xid,new byte[]{1,1,1,1});
+            DataItem di=dm.read(uid);
+            di.before();
+            SubArray data=di.data();
+            data.raw.put(data.start,(byte)2);
+            di.after(xid);
+            di.release();
+            tm.commitAsync(xid);
+            dm.checkpoint();
+
+            try (DataOutputStream out=new DataOutputStream(new FileOutputStream(args[0]+OUT_SUFFIX))){
+                out.writeLong(xid);
+                out.writeLong(uid);
+            }
+            ChildProcess.crash();
+        }
+    }
+
+    private String path(){
+        return new File(tmp.getRoot(),"ckpt").getPath();
+    }
+
+    // checkpoint不再需要这个事务的日志，它的提交状态必须已经持久化，否则恢复时被当作活跃事务回滚
+    @Test
+    public void testCheckpointSyncsAsyncCommits() throws Exception {
+        ChildProcess.run(Child.class,path());
+        long xid,uid;
+        try (DataInputStream in=new DataInputStream(new FileInputStream(path()+OUT_SUFFIX))){
+            xid=in.readLong();
+            uid=in.readLong();
+        }
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        DataManager dm=DataManager.open(path(),MEM,tm);
+        assertTrue(tm.isCommitted(xid));
+        DataItem di=dm.read(uid);
+        SubArray data=di.data();
+        assertEquals(2,data.raw.get(data.start));
+        di.release();
+        dm.close();
+        tm.close();
+    }
+}
@@ -0,0 +1,31 @@
+package com.cheng.mydb.backend.dm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 在另一个JVM中运行main，子进程做完准备工作后调用crash()，用Runtime.halt模拟崩溃：
+ * 不运行关闭逻辑，只留下已经写进文件的内容。
+ */
+class ChildProcess {
+    private static final int CRASHED=3;
+
+    static void run(Class<?> main,String... args) throws Exception {
+        List<String> cmd=new ArrayList<>();
+        cmd.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(main.getName());
+        cmd.addAll(Arrays.asList(args));
+        Process p=new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+        assertEquals("child process did not reach crash()",CRASHED,p.waitFor());
+    }
+
+    static void crash(){
+        Runtime.getRuntime().halt(CRASHED);
+    }
+}
@@ -0,0 +1,113 @@
+package com.cheng.mydb.backend.dm;
+
+import com.cheng.mydb.backend.common.SubArray;
+import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.dm.logger.Logger;
+import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DataManagerImplTest {
+
+    // 只记录追加和持久化位置的日志
+    static class RecordingLogger implements Logger {
+        long end;
+        long flushed;
+
+        public synchronized long log(byte[] data) {
+            end+=data.length;
+            return end;
+        }
+
+        public synchronized long log(List<byte[]> data) {
+            for (byte[] d:data){
+                end+=d.length;
+            }
+            return end;
+        }
+
+        public synchronized void flush(long lsn) {
+            flushed=Math.max(flushed,lsn);
+        }
+
+        public synchronized long end() {
+            return end;
+        }
+
+        public void truncate(long x) {}
+        public void purge(long lsn) {}
+        public byte[] next() { return null; }
+        public void rewind() {}
+        public void seek(long position) {}
+        public long position() { return 0; }
+        public void close() {}
+    }
+
+    private static final int ITEM_SIZE=2000;
+
+    private final RecordingLogger logger=new RecordingLogger();
+    private final DataManagerImpl dm=new DataManagerImpl(pageCache(),logger,null);
+
+    private static PageCache pageCache(){
+        return (PageCache) Proxy.newProxyInstance(PageCache.class.getClassLoader(),new Class[]{PageCache.class},
+                (proxy,method,args) -> method.getName().equals("consistentWriteBack") ? true : null);
+    }
+
+    // 每次修改所有字节的DataItem，一条update日志大约是两倍ITEM_SIZE
+    private static DataItem item(){
+        byte[] raw=new byte[ITEM_SIZE];
+        for (int i=0;i<raw.length;i++) raw[i]=1;
+        SubArray sa=new SubArray(ByteBuffer.wrap(raw),0,raw.length);
+        return (DataItem) Proxy.newProxyInstance(DataItem.class.getClassLoader(),new Class[]{DataItem.class},
+                (proxy,method,args) -> {
+                    switch (method.getName()){
+                        case "getOldRaw": return new byte[ITEM_SIZE];
+                        case "getRaw": return sa;
+                        case "getUid": return 1L;
+                        default: return null;
+                    }
+                });
+    }
+
+    // 超过大小时写入日志的缓冲区已经空了，写回页面前仍然要持久化它写入的日志
+    @Test
+    public void testFlushCoversBufferPublishedAtThreshold() {
+        DataItem di=item();
+        while(logger.end()==0){
+            dm.logDataItem(2,di);
+        }
+        assertEquals(0,logger.flushed);
+
+        dm.flushLogForWrite(0);
+        assertEquals(logger.end(),logger.flushed);
+    }
+
+    // 提交时移出的缓冲区，写回页面前不再能看到，它的日志也要被持久化
+    @Test
+    public void testFlushCoversPublishedAndRemovedBuffer() {
+        dm.logDataItem(2,item());
+        dm.publishLog(2);
+        assertTrue(logger.end()>0);
+        assertEquals(0,logger.flushed);
+
+        dm.flushLogForWrite(0);
+        assertEquals(logger.end(),logger.flushed);
+    }
+
+    @Test
+    public void testFlushPublishesPendingBuffers() {
+        dm.logDataItem(2,item());
+        dm.logDataItem(3,item());
+        assertEquals(0,logger.end());
+
+        dm.flushLogForWrite(0);
+        assertTrue(logger.end()>4*ITEM_SIZE);
+        assertEquals(logger.end(),logger.flushed);
+    }
+}
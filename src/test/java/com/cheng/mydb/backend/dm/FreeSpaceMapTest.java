@@ -0,0 +1,162 @@
+package com.cheng.mydb.backend.dm;
+
+import com.cheng.mydb.backend.dm.page.Page;
+import com.cheng.mydb.backend.dm.page.PageX;
+import com.cheng.mydb.backend.dm.pageIndex.FreeSpaceMap;
+import com.cheng.mydb.backend.dm.pageIndex.PageIndex;
+import com.cheng.mydb.backend.dm.pageIndex.PageInfo;
+import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FreeSpaceMapTest {
+    private static final long MEM=1<<22;
+    private static final int ITEM=100;
+    private static final int OFFSET_SPACES=12;  // [CheckpointLsn][PageNumber]之后是第2页的空闲空间
+
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    // 子进程：插入数据、checkpoint，再在最后几页插入数据后崩溃
+    public static class Child {
+        public static void main(String[] args) throws Exception {
+            TransactionManager tm=TransactionManagerImpl.create(args[0]);
+            DataManagerImpl dm=(DataManagerImpl) DataManager.create(args[0],MEM,tm);
+            insert(tm,dm,2000);
+            dm.checkpoint();
+            insert(tm,dm,300);
+            ChildProcess.crash();
+        }
+    }
+
+    static void insert(TransactionManager tm,DataManager dm,int n) throws Exception {
+        long xid=tm.begin();
+        for (int i=0;i<n;i++){
+            dm.insert(xid,new byte[ITEM]);
+        }
+        tm.commit(xid);
+    }
+
+    private String path(){
+        return new File(tmp.getRoot(),"fsm").getPath();
+    }
+
+    // 篡改空闲空间表中第pgno页的值，之后读入的pageIndex中出现这个值，说明这一页没有被重新读入
+    private void tamper(int pgno,int space) throws Exception {
+        try (RandomAccessFile f=new RandomAccessFile(path()+FreeSpaceMap.FSM_SUFFIX,"rw")){
+            f.seek(OFFSET_SPACES+2L*(pgno-2));
+            f.writeShort(space);
+        }
+    }
+
+    private static Map<Integer,Integer> indexed(DataManagerImpl dm){
+        Map<Integer,Integer> spaces=new HashMap<>();
+        for (PageInfo pi:dm.pageIndex.pages()){
+            spaces.put(pi.pgno,pi.freeSpace);
+        }
+        return spaces;
+    }
+
+    private static int actual(DataManagerImpl dm,int pgno) throws Exception {
+        Page pg=dm.pc.getPage(pgno);
+        try {
+            return PageX.getFreeSpace(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    @Test
+    public void testCleanReopenLoadsMap() throws Exception {
+        TransactionManager tm=TransactionManagerImpl.create(path());
+        DataManagerImpl dm=(DataManagerImpl) DataManager.create(path(),MEM,tm);
+        insert(tm,dm,2000);
+        dm.close();
+        tm.close();
+        tamper(2,1234);
+
+        tm=TransactionManagerImpl.open(path());
+        dm=(DataManagerImpl) DataManager.open(path(),MEM,tm);
+        Map<Integer,Integer> spaces=indexed(dm);
+        assertEquals(dm.pc.getPageNumber()-1,spaces.size());
+        assertEquals(1234,(int)spaces.get(2));
+        for (int pgno=3;pgno<=dm.pc.getPageNumber();pgno++){
+            assertEquals(actual(dm,pgno),(int)spaces.get(pgno));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    // 崩溃后只重新计算恢复时插入过的页面，其他页面的空闲空间来自checkpoint时保存的表
+    @Test
+    public void testCrashRecomputesOnlyInsertedPages() throws Exception {
+        ChildProcess.run(Child.class,path());
+        tamper(2,1234);
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        DataManagerImpl dm=(DataManagerImpl) DataManager.open(path(),MEM,tm);
+        Map<Integer,Integer> spaces=indexed(dm);
+        int pageNumber=dm.pc.getPageNumber();
+        assertEquals(pageNumber-1,spaces.size());
+        assertEquals(1234,(int)spaces.get(2));
+        for (int pgno=3;pgno<=pageNumber;pgno++){
+            assertEquals("page "+pgno,actual(dm,pgno),(int)spaces.get(pgno));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    // 表不是最近一次checkpoint写入的，不可信，扫描所有页面
+    @Test
+    public void testStaleMapIsIgnored() throws Exception {
+        TransactionManager tm=TransactionManagerImpl.create(path());
+        DataManagerImpl dm=(DataManagerImpl) DataManager.create(path(),MEM,tm);
+        insert(tm,dm,2000);
+        dm.close();
+        tm.close();
+        tamper(2,1234);
+        try (RandomAccessFile f=new RandomAccessFile(path()+FreeSpaceMap.FSM_SUFFIX,"rw")){
+            f.writeLong(1);
+        }
+
+        tm=TransactionManagerImpl.open(path());
+        dm=(DataManagerImpl) DataManager.open(path(),MEM,tm);
+        assertEquals(actual(dm,2),(int)indexed(dm).get(2));
+        dm.close();
+        tm.close();
+    }
+
+    // 保存时只写入变化了的空闲空间：文件中没有变化的部分被篡改后，下一次保存不会覆盖它
+    @Test
+    public void testSaveWritesOnlyChangedEntries() throws Exception {
+        PageIndex pIndex=new PageIndex();
+        for (int pgno=2;pgno<=100;pgno++){
+            pIndex.add(pgno,1000);
+        }
+        FreeSpaceMap fsm=new FreeSpaceMap(path());
+        fsm.save(pIndex,10,100);
+        tamper(50,1234);
+
+        pIndex=new PageIndex();
+        for (int pgno=2;pgno<=101;pgno++){
+            pIndex.add(pgno,pgno==3 ? 500 : 1000);
+        }
+        fsm.save(pIndex,20,101);
+
+        int[] spaces=new FreeSpaceMap(path()).load(20);
+        assertEquals(500,spaces[3]);
+        assertEquals(1234,spaces[50]);
+        assertEquals(1000,spaces[101]);
+        assertNull(new FreeSpaceMap(path()).load(10));
+    }
+}
@@ -0,0 +1,65 @@
+package com.cheng.mydb.backend.dm;
+
+import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多线程插入的吞吐量随线程数的变化，不在mvn test中运行，
+ * mvn test-compile后运行 java -cp target/classes:target/test-classes:guava.jar
+ *     com.cheng.mydb.backend.dm.InsertBenchmark [最大线程数] [每个线程插入的条数]。
+ * 每个线程使用自己的事务，最后统一提交，测量的是PageIndex选页、写日志和修改页面的开销。
+ */
+public class InsertBenchmark {
+    private static final int ITEM=64;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads=args.length>0?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors()*2;
+        int perThread=args.length>1?Integer.parseInt(args[1]):20000;
+        for (int threads=1;threads<=maxThreads;threads*=2){
+            System.out.printf("threads=%d inserts/s=%d%n",threads,run(threads,perThread));
+        }
+    }
+
+    static long run(int threads,int perThread) throws Exception {
+        File dir=Files.createTempDirectory("insertbench").toFile();
+        String path=new File(dir,"bench").getPath();
+        TransactionManager tm=TransactionManagerImpl.create(path);
+        DataManager dm=DataManager.create(path,64L<<20,tm);
+
+        List<Thread> workers=new ArrayList<>();
+        long start=System.nanoTime();
+        for (int t=0;t<threads;t++){
+            Thread w=new Thread(() -> {
+                try {
+                    long xid=tm.begin();
+                    byte[] data=new byte[ITEM];
+                    for (int i=0;i<perThread;i++){
+                        dm.insert(xid,data);
+                    }
+                    tm.commit(xid);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        long nanos=System.nanoTime()-start;
+
+        dm.close();
+        tm.close();
+        for (File f:dir.listFiles()){
+            f.delete();
+        }
+        dir.delete();
+        return (long)threads*perThread*1_000_000_000L/nanos;
+    }
+}
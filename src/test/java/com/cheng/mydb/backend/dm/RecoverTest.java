@@ -0,0 +1,323 @@
+package com.cheng.mydb.backend.dm;
+
+import com.cheng.mydb.backend.common.SubArray;
+import com.cheng.mydb.backend.dm.dataItem.DataItem;
+import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import com.cheng.mydb.backend.im.BPlusTree;
+import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecoverTest {
+    private static final long MEM=1<<22;
+    private static final String OUT_SUFFIX=".out";
+    private static final int N=2000;        // 每一页大约能放下600个，覆盖多个redo分区
+    private static final int CHANGED=200;
+
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    /**
+     * 子进程：事务A插入N个数据并提交；事务B修改前CHANGED个、再插入CHANGED个后不提交；
+     * checkpoint把B的修改写回数据源；事务C修改接下来的CHANGED个、再插入CHANGED个并提交，然后崩溃。
+     * 恢复时需要undo B（日志在checkpoint之前），redo C（日志在checkpoint之后）。
+     */
+    public static class Child {
+        public static void main(String[] args) throws Exception {
+            TransactionManager tm=TransactionManagerImpl.create(args[0]);
+            DataManagerImpl dm=(DataManagerImpl) DataManager.create(args[0],MEM,tm);
+
+            long[] uids=new long[N];
+            long a=tm.begin();
+            for (int i=0;i<N;i++){
+                uids[i]=dm.insert(a,value(i));
+            }
+            tm.commit(a);
+
+            long b=tm.begin();
+            for (int i=0;i<CHANGED;i++){
+                update(dm,b,uids[i],-1);
+            }
+            insert(dm,b,-1);
+            dm.checkpoint();
+
+            long c=tm.begin();
+            for (int i=CHANGED;i<2*CHANGED;i++){
+                update(dm,c,uids[i],-2);
+            }
+            long[] cInserted=insert(dm,c,-2);
+            tm.commit(c);
+
+            try (DataOutputStream out=new DataOutputStream(new FileOutputStream(args[0]+OUT_SUFFIX))){
+                out.writeLong(b);
+                write(out,uids);
+                write(out,cInserted);
+            }
+            ChildProcess.crash();
+        }
+    }
+
+    // 子进程：提交的插入已经随页面写回数据源后崩溃，恢复时插入日志不需要redo。
+    // 私有缓冲区中的update日志不记录页面LSN，总是redo，这里只检查直接写入日志的插入
+    public static class DurableChild {
+        public static void main(String[] args) throws Exception {
+            TransactionManager tm=TransactionManagerImpl.create(args[0]);
+            DataManagerImpl dm=(DataManagerImpl) DataManager.create(args[0],MEM,tm);
+            long xid=tm.begin();
+            long uid=dm.insert(xid,value(1));
+            tm.commit(xid);
+            dm.pc.flushAll();
+            try (DataOutputStream out=new DataOutputStream(new FileOutputStream(args[0]+OUT_SUFFIX))){
+                out.writeLong(uid);
+            }
+            ChildProcess.crash();
+        }
+    }
+
+    // 子进程：B修改u1中不相邻的两处后不提交，checkpoint之后C修改u2中不相邻的两处并提交，然后崩溃。
+    // update日志只记录修改过的区间，redo和undo都只能改动这些区间
+    public static class DeltaChild {
+        public static void main(String[] args) throws Exception {
+            TransactionManager tm=TransactionManagerImpl.create(args[0]);
+            DataManagerImpl dm=(DataManagerImpl) DataManager.create(args[0],MEM,tm);
+            long a=tm.begin();
+            long u1=dm.insert(a,pattern());
+            long u2=dm.insert(a,pattern());
+            tm.commit(a);
+
+            long b=tm.begin();
+            patch(dm,b,u1,3,40);
+            dm.checkpoint();
+
+            long c=tm.begin();
+            patch(dm,c,u2,5,50);
+            tm.commit(c);
+            try (DataOutputStream out=new DataOutputStream(new FileOutputStream(args[0]+OUT_SUFFIX))){
+                out.writeLong(u1);
+                out.writeLong(u2);
+            }
+            ChildProcess.crash();
+        }
+    }
+
+    // 子进程：B+树的修改以逻辑redo日志记录，一半的插入在checkpoint之前，另一半在之后，持久化日志后崩溃
+    public static class TreeChild {
+        public static void main(String[] args) throws Exception {
+            TransactionManager tm=TransactionManagerImpl.create(args[0]);
+            DataManagerImpl dm=(DataManagerImpl) DataManager.create(args[0],MEM,tm);
+            long bootUid=BPlusTree.create(dm);
+            BPlusTree tree=BPlusTree.load(bootUid,dm);
+            for (int i=0;i<N;i++){
+                if (i==N/2){
+                    dm.checkpoint();
+                }
+                long key=(i*7919L)%N;   // 乱序插入，分裂发生在不同的节点
+                tree.insert(key,key);
+            }
+            dm.logger.flush(dm.logger.end());
+            try (DataOutputStream out=new DataOutputStream(new FileOutputStream(args[0]+OUT_SUFFIX))){
+                out.writeLong(bootUid);
+            }
+            ChildProcess.crash();
+        }
+    }
+
+    static byte[] pattern(){
+        byte[] raw=new byte[64];
+        for (int i=0;i<raw.length;i++){
+            raw[i]=(byte)i;
+        }
+        return raw;
+    }
+
+    // 把positions处的字节取反
+    static void patch(DataManager dm,long xid,long uid,int... positions) throws Exception {
+        DataItem di=dm.read(uid);
+        di.before();
+        SubArray data=di.data();
+        for (int p:positions){
+            data.raw.put(data.start+p,(byte)~data.raw.get(data.start+p));
+        }
+        di.after(xid);
+        di.release();
+    }
+
+    static byte[] bytes(DataManager dm,long uid) throws Exception {
+        DataItem di=dm.read(uid);
+        try {
+            SubArray data=di.data();
+            byte[] raw=new byte[data.end-data.start];
+            for (int i=0;i<raw.length;i++){
+                raw[i]=data.raw.get(data.start+i);
+            }
+            return raw;
+        } finally {
+            di.release();
+        }
+    }
+
+    static byte[] value(long v){
+        byte[] raw=new byte[8];
+        for (int i=0;i<8;i++){
+            raw[i]=(byte)(v>>>(56-8*i));
+        }
+        return raw;
+    }
+
+    static long[] insert(DataManager dm,long xid,long v) throws Exception {
+        long[] uids=new long[CHANGED];
+        for (int i=0;i<CHANGED;i++){
+            uids[i]=dm.insert(xid,value(v));
+        }
+        return uids;
+    }
+
+    static void update(DataManager dm,long xid,long uid,long v) throws Exception {
+        DataItem di=dm.read(uid);
+        di.before();
+        SubArray data=di.data();
+        byte[] raw=value(v);
+        for (int i=0;i<raw.length;i++){
+            data.raw.put(data.start+i,raw[i]);
+        }
+        di.after(xid);
+        di.release();
+    }
+
+    static long read(DataManager dm,long uid) throws Exception {
+        DataItem di=dm.read(uid);
+        assertTrue(di!=null);
+        try {
+            SubArray data=di.data();
+            long v=0;
+            for (int i=0;i<8;i++){
+                v=(v<<8)|(data.raw.get(data.start+i)&0xFF);
+            }
+            return v;
+        } finally {
+            di.release();
+        }
+    }
+
+    private static void write(DataOutputStream out,long[] uids) throws Exception {
+        out.writeInt(uids.length);
+        for (long uid:uids){
+            out.writeLong(uid);
+        }
+    }
+
+    private static long[] read(DataInputStream in) throws Exception {
+        long[] uids=new long[in.readInt()];
+        for (int i=0;i<uids.length;i++){
+            uids[i]=in.readLong();
+        }
+        return uids;
+    }
+
+    private String path(){
+        return new File(tmp.getRoot(),"recover").getPath();
+    }
+
+    @Test
+    public void testRedoCommittedAndUndoActive() throws Exception {
+        ChildProcess.run(Child.class,path());
+        long b;
+        long[] uids,cInserted;
+        try (DataInputStream in=new DataInputStream(new FileInputStream(path()+OUT_SUFFIX))){
+            b=in.readLong();
+            uids=read(in);
+            cInserted=read(in);
+        }
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        DataManager dm=DataManager.open(path(),MEM,tm);
+        for (int i=0;i<N;i++){
+            long expected=i>=CHANGED && i<2*CHANGED ? -2 : i;
+            assertEquals("item "+i,expected,read(dm,uids[i]));
+        }
+        // 插入的数据项只由事务状态决定可见性，undo插入不改变数据项本身
+        assertTrue(tm.isAborted(b));
+        for (long uid:cInserted){
+            assertEquals(-2,read(dm,uid));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    // 数据源中页面的LSN不小于日志的LSN，redo跳过这些日志：篡改数据源中的内容后，恢复不会覆盖它
+    @Test
+    public void testRedoSkipsChangesAlreadyOnDisk() throws Exception {
+        ChildProcess.run(DurableChild.class,path());
+        long uid;
+        try (DataInputStream in=new DataInputStream(new FileInputStream(path()+OUT_SUFFIX))){
+            uid=in.readLong();
+        }
+        int pgno=(int)(uid>>>32);
+        long offset=(long)(pgno-1)*PageCache.PAGE_SIZE+(uid&0xFFFF)+DataItem.OFFSET_DATA;
+        try (RandomAccessFile f=new RandomAccessFile(path()+PageCache.DB_SUFFIX,"rw")){
+            f.seek(offset);
+            f.write(value(9));
+        }
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        DataManager dm=DataManager.open(path(),MEM,tm);
+        assertEquals(9,read(dm,uid));
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testRedoAndUndoDeltaUpdates() throws Exception {
+        ChildProcess.run(DeltaChild.class,path());
+        long u1,u2;
+        try (DataInputStream in=new DataInputStream(new FileInputStream(path()+OUT_SUFFIX))){
+            u1=in.readLong();
+            u2=in.readLong();
+        }
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        DataManager dm=DataManager.open(path(),MEM,tm);
+        assertArrayEquals(pattern(),bytes(dm,u1));
+        byte[] expected=pattern();
+        expected[5]=(byte)~expected[5];
+        expected[50]=(byte)~expected[50];
+        assertArrayEquals(expected,bytes(dm,u2));
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testRedoLogicalTreeRecords() throws Exception {
+        ChildProcess.run(TreeChild.class,path());
+        long bootUid;
+        try (DataInputStream in=new DataInputStream(new FileInputStream(path()+OUT_SUFFIX))){
+            bootUid=in.readLong();
+        }
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        DataManager dm=DataManager.open(path(),MEM,tm);
+        BPlusTree tree=BPlusTree.load(bootUid,dm);
+        List<Long> all=tree.searchRange(0,Long.MAX_VALUE);
+        assertEquals(N,all.size());
+        for (int i=0;i<N;i++){
+            assertEquals(i,(long)all.get(i));
+        }
+        tree.close();
+        dm.close();
+        tm.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.cheng.mydb.backend.dm.logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerTest {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private String path(){
+        return new File(tmp.getRoot(),"log").getPath();
+    }
+
+    private static byte[] data(int i,int length){
+        byte[] data=new byte[length];
+        for (int j=0;j<length;j++){
+            data[j]=(byte)(i+j);
+        }
+        return data;
+    }
+
+    private static List<byte[]> readAll(Logger lg){
+        List<byte[]> logs=new ArrayList<>();
+        lg.rewind();
+        byte[] log;
+        while((log=lg.next())!=null){
+            logs.add(log);
+        }
+        return logs;
+    }
+
+    private static void assertLogs(List<byte[]> expected,List<byte[]> actual){
+        assertEquals(expected.size(),actual.size());
+        for (int i=0;i<expected.size();i++){
+            assertArrayEquals("log "+i,expected.get(i),actual.get(i));
+        }
+    }
+
+    // 写日志时返回的LSN和读出时的position相同，都是这条日志的末尾
+    @Test
+    public void testRoundTrip() {
+        Logger lg=Logger.create(path());
+        List<byte[]> expected=new ArrayList<>();
+        List<Long> lsns=new ArrayList<>();
+        for (int i=0;i<100;i++){
+            expected.add(data(i,1+i*7));
+            lsns.add(lg.log(expected.get(i)));
+        }
+        lg.flush(lsns.get(lsns.size()-1));
+        lg.close();
+
+        lg=Logger.open(path());
+        lg.rewind();
+        for (int i=0;i<expected.size();i++){
+            assertArrayEquals(expected.get(i),lg.next());
+            assertEquals((long)lsns.get(i),lg.position());
+        }
+        assertNull(lg.next());
+        assertEquals((long)lsns.get(lsns.size()-1),lg.end());
+        lg.close();
+    }
+
+    // 最后一条日志校验失败时被截断，之后的日志从截断处继续追加
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        Logger lg=Logger.create(path());
+        List<byte[]> expected=new ArrayList<>();
+        long lsn=0;
+        for (int i=0;i<10;i++){
+            expected.add(data(i,100));
+            lsn=lg.log(expected.get(i));
+        }
+        lg.close();
+        try (RandomAccessFile f=new RandomAccessFile(LoggerImpl.segmentFile(path(),0),"rw")){
+            f.seek(lsn-1);
+            int b=f.read();
+            f.seek(lsn-1);
+            f.write(b^1);
+        }
+
+        lg=Logger.open(path());
+        expected.remove(expected.size()-1);
+        assertLogs(expected,readAll(lg));
+        expected.add(data(42,50));
+        lg.log(expected.get(expected.size()-1));
+        lg.close();
+
+        lg=Logger.open(path());
+        assertLogs(expected,readAll(lg));
+        lg.close();
+    }
+
+    // 校验和正确但LSN和位置对不上的日志（比如截断后残留的旧日志）不被当作正确日志
+    @Test
+    public void testMisplacedRecordIsRejected() throws Exception {
+        Logger lg=Logger.create(path());
+        long first=lg.log(data(1,100));
+        long second=lg.log(data(2,100));
+        lg.close();
+        byte[] record=new byte[(int)(second-first)];
+        try (RandomAccessFile f=new RandomAccessFile(LoggerImpl.segmentFile(path(),0),"rw")){
+            f.seek(first);
+            f.readFully(record);
+            f.seek(LoggerImpl.HEADER_SIZE);
+            f.write(record);
+        }
+
+        lg=Logger.open(path());
+        assertTrue(readAll(lg).isEmpty());
+        assertEquals(LoggerImpl.HEADER_SIZE,lg.end());
+        lg.close();
+    }
+
+    // 日志不跨段，写满一段后从下一段开头继续；purge之后只剩下后面的段
+    @Test
+    public void testSegmentsRoundTripAndPurge() {
+        Logger lg=Logger.create(path());
+        List<byte[]> expected=new ArrayList<>();
+        int size=1<<20;
+        long lsn=0;
+        for (int i=0;lsn<LoggerImpl.SEGMENT_SIZE+2L*size;i++){
+            expected.add(data(i,size));
+            lsn=lg.log(expected.get(i));
+        }
+        lg.flush(lsn);
+        lg.close();
+        assertTrue(LoggerImpl.segmentFile(path(),1).exists());
+
+        lg=Logger.open(path());
+        assertLogs(expected,readAll(lg));
+        lg.purge(lsn);
+        assertFalse(LoggerImpl.segmentFile(path(),0).exists());
+        lg.close();
+
+        lg=Logger.open(path());
+        List<byte[]> rest=readAll(lg);
+        assertFalse(rest.isEmpty());
+        assertLogs(expected.subList(expected.size()-rest.size(),expected.size()),rest);
+        assertEquals(lsn,lg.end());
+        lg.close();
+    }
+}
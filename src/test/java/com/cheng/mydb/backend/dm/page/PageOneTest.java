@@ -0,0 +1,43 @@
+package com.cheng.mydb.backend.dm.page;
+
+import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import com.cheng.mydb.common.Error;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PageOneTest {
+
+    private static void assertRejected(ByteBuffer raw) {
+        try {
+            PageOne.checkFormat(raw);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.BadDbFileException,e);
+        }
+    }
+
+    @Test
+    public void testNewPageOneHasCurrentFormat() throws Exception {
+        PageOne.checkFormat(ByteBuffer.wrap(PageOne.initRaw()));
+    }
+
+    // 旧格式的第一页只有ValidCheck，格式字段全为0
+    @Test
+    public void testRejectsOldFormat() {
+        ByteBuffer raw=ByteBuffer.wrap(new byte[PageCache.PAGE_SIZE]);
+        raw.put(100,(byte)1);
+        raw.put(108,(byte)1);
+        assertRejected(raw);
+    }
+
+    @Test
+    public void testRejectsOtherVersion() {
+        ByteBuffer raw=ByteBuffer.wrap(PageOne.initRaw());
+        raw.putInt(140,PageOne.FORMAT_VERSION+1);
+        assertRejected(raw);
+    }
+}
@@ -0,0 +1,60 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.dm.page.Page;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedPageCacheTest {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    // 页面的修改直接落在映射区域中，关闭时文件截断到实际的页数，重新打开后内容不变
+    @Test
+    public void testReopen() throws Exception {
+        String path=new File(tmp.getRoot(),"mapped").getPath();
+        PageCache pc=PageCache.create(path,0,true);
+        for (int i=1;i<=100;i++){
+            byte[] raw=new byte[PageCache.PAGE_SIZE];
+            raw[0]=(byte)i;
+            assertEquals(i,pc.newPage(raw));
+        }
+        Page page=pc.getPage(42);
+        page.getData().put(1,(byte)7);
+        page.setDirty(true);
+        page.release();
+        pc.close();
+        assertEquals(100L*PageCache.PAGE_SIZE,new File(path+PageCache.DB_SUFFIX).length());
+
+        pc=PageCache.open(path,0,true);
+        assertEquals(100,pc.getPageNumber());
+        for (int i=1;i<=100;i++){
+            page=pc.getPage(i);
+            assertEquals((byte)i,page.getData().get(0));
+            assertEquals(i==42?7:0,page.getData().get(1));
+            page.release();
+        }
+        pc.close();
+    }
+
+    // 缓冲池和内存映射使用同一种文件格式，可以互相打开
+    @Test
+    public void testSameFileFormat() throws Exception {
+        String path=new File(tmp.getRoot(),"shared").getPath();
+        PageCache pc=PageCache.create(path,1<<20);
+        byte[] raw=new byte[PageCache.PAGE_SIZE];
+        raw[PageCache.PAGE_SIZE-1]=9;
+        pc.newPage(raw);
+        pc.close();
+
+        pc=PageCache.open(path,0,true);
+        Page page=pc.getPage(1);
+        assertEquals(9,page.getData().get(PageCache.PAGE_SIZE-1));
+        page.release();
+        pc.close();
+    }
+}
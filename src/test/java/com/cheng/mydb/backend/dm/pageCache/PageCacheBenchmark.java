@@ -0,0 +1,81 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.dm.page.Page;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 比较缓冲池和内存映射两种PageCache的随机读吞吐量，不在mvn test中运行，
+ * mvn test-compile后运行 java -cp target/classes:target/test-classes:guava.jar
+ *     com.cheng.mydb.backend.dm.pageCache.PageCacheBenchmark [页数] [线程数]。
+ * 缓冲池的大小足够放下所有页面，先顺序读一遍预热，测量的是命中时getPage/release和读取页面内容的开销。
+ */
+public class PageCacheBenchmark {
+    private static final long DURATION_MS=3000;
+
+    public static void main(String[] args) throws Exception {
+        int pages=args.length>0?Integer.parseInt(args[0]):8192;
+        int threads=args.length>1?Integer.parseInt(args[1]):Runtime.getRuntime().availableProcessors();
+        File dir=Files.createTempDirectory("pcbench").toFile();
+        String path=new File(dir,"bench").getPath();
+        long memory=(long)(pages+16)*PageCache.PAGE_SIZE;
+
+        PageCache pc=PageCache.create(path,memory);
+        for (int i=0;i<pages;i++){
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        for (boolean mapped:new boolean[]{false,true}){
+            pc=PageCache.open(path,memory,mapped);
+            for (int pgno=1;pgno<=pages;pgno++){
+                pc.getPage(pgno).release();
+            }
+            System.out.printf("%s pages=%d threads=%d reads/s=%d%n",
+                    mapped?"mapped":"buffered",pages,threads,run(pc,pages,threads));
+            pc.close();
+        }
+        for (File f:dir.listFiles()){
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    static long run(PageCache pc,int pages,int threads) throws Exception {
+        LongAdder ops=new LongAdder();
+        long deadline=System.currentTimeMillis()+DURATION_MS;
+        List<Thread> workers=new ArrayList<>();
+        for (int t=0;t<threads;t++){
+            Thread w=new Thread(() -> {
+                ThreadLocalRandom random=ThreadLocalRandom.current();
+                long n=0;
+                long sum=0;
+                try {
+                    while(System.currentTimeMillis()<deadline){
+                        for (int i=0;i<1024;i++){
+                            Page page=pc.getPage(random.nextInt(pages)+1);
+                            sum+=page.getData().getLong(random.nextInt(PageCache.PAGE_SIZE/8)*8);
+                            page.release();
+                        }
+                        n+=1024;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                ops.add(n);
+                if (sum==42) System.out.print("");  // 避免读取被优化掉
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        return ops.sum()*1000/DURATION_MS;
+    }
+}
@@ -0,0 +1,233 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.dm.page.Page;
+import com.cheng.mydb.common.Error;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PageCacheImplTest {
+    private static final int FRAMES=10;
+
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private String path() {
+        return new File(tmp.getRoot(),"pc").getPath();
+    }
+
+    private PageCacheImpl create() {
+        return (PageCacheImpl) PageCache.create(path(),(long)FRAMES*PageCache.PAGE_SIZE);
+    }
+
+    // 直接从文件读出第pgno页第100个字节
+    private byte onDisk(int pgno) throws Exception {
+        try (RandomAccessFile f=new RandomAccessFile(path()+PageCache.DB_SUFFIX,"r")){
+            f.seek((long)(pgno-1)*PageCache.PAGE_SIZE+100);
+            return f.readByte();
+        }
+    }
+
+    private static byte[] pageOf(int value){
+        byte[] raw=new byte[PageCache.PAGE_SIZE];
+        raw[100]=(byte)value;
+        return raw;
+    }
+
+    // 缓冲池只有FRAMES个页面，读入更多页面时驱逐旧页，脏页写回后重新读入内容不变
+    @Test
+    public void testEvictAndReload() throws Exception {
+        PageCacheImpl pc=create();
+        for (int i=1;i<=FRAMES*4;i++){
+            assertEquals(i,pc.newPage(pageOf(0)));
+        }
+        for (int i=1;i<=FRAMES*4;i++){
+            Page page=pc.getPage(i);
+            page.setDirty(true);
+            page.getData().put(100,(byte)i);
+            page.release();
+        }
+        for (int i=1;i<=FRAMES*4;i++){
+            Page page=pc.getPage(i);
+            assertEquals((byte)i,page.getData().get(100));
+            page.release();
+        }
+        pc.close();
+    }
+
+    // 所有页面都被引用时，超时后抛出CacheFullException，而不是永远等待
+    @Test
+    public void testReserveTimesOutWhenAllPinned() throws Exception {
+        PageCacheImpl pc=create();
+        pc.setReserveTimeout(200);
+        for (int i=1;i<=FRAMES+1;i++){
+            pc.newPage(pageOf(i));
+        }
+        List<Page> pinned=new ArrayList<>();
+        for (int i=1;i<=FRAMES;i++){
+            pinned.add(pc.getPage(i));
+        }
+        long start=System.currentTimeMillis();
+        try {
+            pc.getPage(FRAMES+1);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.CacheFullException,e);
+        }
+        long waited=System.currentTimeMillis()-start;
+        assertTrue(waited>=150 && waited<5000);
+
+        // 释放之后可以正常读入
+        pinned.get(0).release();
+        Page page=pc.getPage(FRAMES+1);
+        assertEquals((byte)(FRAMES+1),page.getData().get(100));
+        page.release();
+        for (int i=1;i<FRAMES;i++){
+            pinned.get(i).release();
+        }
+        pc.close();
+    }
+
+    // 正在修改的页面不会被写回，修改结束后才写出完整的内容
+    @Test
+    public void testHalfModifiedPageIsNotWritten() throws Exception {
+        PageCacheImpl pc=create();
+        pc.newPage(pageOf(0));
+        Page page=pc.getPage(1);
+        page.beginModify();
+        page.setDirty(true);
+        page.getData().put(100,(byte)1);
+        CompletableFuture<Void> flushed=CompletableFuture.runAsync(() -> pc.flushPage(page));
+        Thread.sleep(500);      // 超过后台写回的周期
+        assertEquals(0,onDisk(1));
+        assertFalse(flushed.isDone());
+        page.getData().put(101,(byte)1);
+        page.endModify();
+        flushed.get(5,TimeUnit.SECONDS);
+        assertEquals(1,onDisk(1));
+        page.release();
+        pc.close();
+    }
+
+    // flushPage只写这一页，不等待其他正在修改的页面
+    @Test
+    public void testFlushPageIsSinglePage() throws Exception {
+        PageCacheImpl pc=create();
+        pc.newPage(pageOf(0));
+        pc.newPage(pageOf(0));
+        Page busy=pc.getPage(2);
+        busy.beginModify();
+        busy.setDirty(true);
+        busy.getData().put(100,(byte)2);
+
+        Page page=pc.getPage(1);
+        page.setDirty(true);
+        page.getData().put(100,(byte)1);
+        CompletableFuture.runAsync(() -> pc.flushPage(page)).get(5,TimeUnit.SECONDS);
+        assertEquals(1,onDisk(1));
+        assertEquals(0,onDisk(2));
+
+        busy.endModify();
+        busy.release();
+        page.release();
+        pc.close();
+        assertEquals(2,onDisk(2));
+    }
+
+    // 多个线程同时读写不同的页面，缓冲池远小于页数，读入和写回都在并发进行
+    @Test
+    public void testConcurrentPositionalIO() throws Exception {
+        String path=path();
+        PageCache pc=PageCache.create(path,(long)FRAMES*PageCache.PAGE_SIZE,false,4);
+        int pages=FRAMES*8;
+        for (int i=1;i<=pages;i++){
+            pc.newPage(pageOf(0));
+        }
+        int threads=8;
+        List<Thread> workers=new ArrayList<>();
+        List<Throwable> errors=new ArrayList<>();
+        for (int t=0;t<threads;t++){
+            int tt=t;
+            Thread w=new Thread(() -> {
+                try {
+                    for (int round=1;round<=3;round++){
+                        for (int pgno=tt+1;pgno<=pages;pgno+=threads){
+                            Page page=pc.getPage(pgno);
+                            assertEquals((byte)(round==1?0:pgno+round-1),page.getData().get(100));
+                            page.beginModify();
+                            page.setDirty(true);
+                            page.getData().put(100,(byte)(pgno+round));
+                            page.endModify();
+                            page.release();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors){
+                        errors.add(e);
+                    }
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        assertEquals(0,errors.size());
+        pc.close();
+        for (int pgno=1;pgno<=pages;pgno+=97){
+            assertEquals((byte)(pgno+3),onDisk(pgno));
+        }
+    }
+
+    // 预读只是提示，和close()并发时不能抛出RejectedExecutionException
+    @Test
+    public void testPrefetchRacingClose() throws Exception {
+        PageCacheImpl pc=create();
+        for (int i=1;i<=FRAMES*4;i++){
+            pc.newPage(pageOf(i));
+        }
+        CompletableFuture<Void> prefetching=CompletableFuture.runAsync(() -> {
+            for (int i=0;i<20000;i++){
+                pc.prefetch(1+i%(FRAMES*4),4);
+            }
+        });
+        Thread.sleep(5);
+        pc.close();
+        prefetching.get(30,TimeUnit.SECONDS);
+    }
+
+    // 脏页多于暂存区的页数时分几轮写出，flushAll返回时所有的脏页都已经写回
+    @Test
+    public void testFlushAllMoreDirtyPagesThanStaging() throws Exception {
+        int pages=2500;
+        PageCacheImpl pc=(PageCacheImpl) PageCache.create(path(),(long)(pages+FRAMES)*PageCache.PAGE_SIZE);
+        for (int i=1;i<=pages;i++){
+            pc.newPage(pageOf(0));
+        }
+        for (int i=1;i<=pages;i++){
+            Page page=pc.getPage(i);
+            page.getData().put(100,(byte)i);
+            page.setDirty(true);
+            page.release();
+        }
+        pc.flushAll();
+        for (int i=1;i<=pages;i++){
+            assertEquals((byte)i,onDisk(i));
+        }
+        pc.close();
+    }
+}
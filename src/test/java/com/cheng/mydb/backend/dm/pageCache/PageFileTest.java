@@ -0,0 +1,98 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.common.Error;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PageFileTest {
+    private static final long SEGMENT_BYTES=(long)PageFile.SEGMENT_PAGES*PageCache.PAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private String path(){
+        return new File(tmp.getRoot(),"pf").getPath();
+    }
+
+    // 段文件用稀疏文件构造，不真正占用1G的空间
+    private void segment(int index,long length) throws Exception {
+        String name=path()+PageCache.DB_SUFFIX+(index==0?"":"."+index);
+        try (RandomAccessFile f=new RandomAccessFile(name,"rw")){
+            f.setLength(length);
+        }
+    }
+
+    private void assertRejected() {
+        try {
+            PageFile.countPages(path());
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.BadDbFileException,e);
+        }
+    }
+
+    @Test
+    public void testCountsContiguousSegments() throws Exception {
+        segment(0,SEGMENT_BYTES);
+        segment(1,SEGMENT_BYTES);
+        segment(2,5L*PageCache.PAGE_SIZE);
+        assertEquals(2*PageFile.SEGMENT_PAGES+5,PageFile.countPages(path()));
+    }
+
+    @Test
+    public void testRejectsShortMiddleSegment() throws Exception {
+        segment(0,SEGMENT_BYTES-PageCache.PAGE_SIZE);
+        segment(1,PageCache.PAGE_SIZE);
+        assertRejected();
+    }
+
+    @Test
+    public void testRejectsSegmentAfterGap() throws Exception {
+        segment(0,SEGMENT_BYTES);
+        segment(2,PageCache.PAGE_SIZE);
+        assertRejected();
+    }
+
+    // 之前的数据库留下的段文件，新建的第0段是空的
+    @Test
+    public void testRejectsStaleSegmentOfOldDatabase() throws Exception {
+        segment(0,0);
+        segment(3,SEGMENT_BYTES);
+        assertRejected();
+    }
+
+    // 跨段读写：第一段的最后一页和第二段的第一页分别落在各自的段文件中
+    @Test
+    public void testWriteAcrossSegments() throws Exception {
+        segment(0,SEGMENT_BYTES);
+        PageFile pf=new PageFile(path());
+        int last=PageFile.SEGMENT_PAGES;
+        ByteBuffer a=ByteBuffer.allocate(PageCache.PAGE_SIZE);
+        ByteBuffer b=ByteBuffer.allocate(PageCache.PAGE_SIZE);
+        a.put(0,(byte)1);
+        b.put(0,(byte)2);
+        pf.write(last,new ByteBuffer[]{a,b});
+        pf.force();
+        pf.close();
+        assertEquals(PageCache.PAGE_SIZE,new File(path()+PageCache.DB_SUFFIX+".1").length());
+
+        pf=new PageFile(path());
+        assertEquals(last+1,pf.pageNumber());
+        ByteBuffer buf=ByteBuffer.allocate(PageCache.PAGE_SIZE);
+        pf.read(last,buf);
+        assertEquals(1,buf.get(0));
+        buf.clear();
+        pf.read(last+1,buf);
+        assertEquals(2,buf.get(0));
+        pf.close();
+    }
+}
@@ -0,0 +1,78 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import com.cheng.mydb.backend.dm.page.Page;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓冲池远小于文件时的随机读IOPS随线程数的变化，几乎每次getPage都要读文件，不在mvn test中运行，
+ * mvn test-compile后运行 java -cp target/classes:target/test-classes:guava.jar
+ *     com.cheng.mydb.backend.dm.pageCache.RandomReadBenchmark [页数] [最大线程数] [ioConcurrency]。
+ * 文件没有绕过操作系统的页缓存，在内存足够的机器上测到的主要是系统调用的并发度。
+ */
+public class RandomReadBenchmark {
+    private static final long DURATION_MS=3000;
+    private static final int FRAMES=256;
+
+    public static void main(String[] args) throws Exception {
+        int pages=args.length>0?Integer.parseInt(args[0]):16384;
+        int maxThreads=args.length>1?Integer.parseInt(args[1]):Runtime.getRuntime().availableProcessors()*4;
+        int ioConcurrency=args.length>2?Integer.parseInt(args[2]):PageCache.DEFAULT_IO_CONCURRENCY;
+        File dir=Files.createTempDirectory("readbench").toFile();
+        String path=new File(dir,"bench").getPath();
+        long memory=(long)FRAMES*PageCache.PAGE_SIZE;
+
+        PageCache pc=PageCache.create(path,memory);
+        for (int i=0;i<pages;i++){
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        for (int threads=1;threads<=maxThreads;threads*=2){
+            pc=PageCache.open(path,memory,false,ioConcurrency);
+            System.out.printf("pages=%d frames=%d ioConcurrency=%d threads=%d iops=%d%n",
+                    pages,FRAMES,ioConcurrency,threads,run(pc,pages,threads));
+            pc.close();
+        }
+        for (File f:dir.listFiles()){
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    static long run(PageCache pc,int pages,int threads) throws Exception {
+        LongAdder ops=new LongAdder();
+        long deadline=System.currentTimeMillis()+DURATION_MS;
+        List<Thread> workers=new ArrayList<>();
+        for (int t=0;t<threads;t++){
+            Thread w=new Thread(() -> {
+                ThreadLocalRandom random=ThreadLocalRandom.current();
+                long n=0;
+                try {
+                    while(System.currentTimeMillis()<deadline){
+                        for (int i=0;i<256;i++){
+                            // 不相邻的页号，不会触发顺序预读
+                            Page page=pc.getPage(random.nextInt(pages)+1);
+                            page.release();
+                        }
+                        n+=256;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                ops.add(n);
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        return ops.sum()*1000/DURATION_MS;
+    }
+}
@@ -0,0 +1,80 @@
+package com.cheng.mydb.backend.dm.pageCache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TwoQueuePolicyTest {
+    private Map<Integer,Frame> frames=new HashMap<>();
+
+    // 新读入的页面引用计数为1，释放后才能被驱逐
+    private Frame admit(TwoQueuePolicy policy,int pgno){
+        Frame frame=new Frame(pgno);
+        frame.unpin();
+        policy.admit(frame);
+        frames.put(pgno,frame);
+        return frame;
+    }
+
+    @Test
+    public void testA1inIsFifo() {
+        TwoQueuePolicy policy=new TwoQueuePolicy(8);   // kin=2
+        admit(policy,1);
+        admit(policy,2);
+        admit(policy,3);
+        assertEquals(1,policy.evict().pgno);
+        assertEquals(2,policy.evict().pgno);
+    }
+
+    // 从A1in淘汰后再次访问的页面进入Am，之后的顺序扫描只淘汰A1in中的页面
+    @Test
+    public void testScanDoesNotFlushHotPage() {
+        TwoQueuePolicy policy=new TwoQueuePolicy(8);
+        admit(policy,1);
+        admit(policy,2);
+        admit(policy,3);
+        assertEquals(1,policy.evict().pgno);
+        Frame hot=admit(policy,1);
+        assertTrue(hot.hot);
+
+        for (int pgno=10;pgno<30;pgno++){
+            admit(policy,pgno);
+            Frame victim=policy.evict();
+            assertNotEquals(1,victim.pgno);
+            assertTrue(victim.pgno>=2);
+        }
+    }
+
+    @Test
+    public void testAmGivesReferencedPageSecondChance() {
+        TwoQueuePolicy policy=new TwoQueuePolicy(8);
+        for (int pgno=1;pgno<=3;pgno++) admit(policy,pgno);
+        policy.evict();                 // 1进入A1out
+        policy.evict();                 // 2进入A1out
+        Frame a=admit(policy,1);
+        Frame b=admit(policy,2);
+        a.referenced=true;
+        policy.remove(frames.get(3));   // A1in为空，只从Am淘汰
+        assertEquals(b,policy.evict());
+        assertEquals(a,policy.evict());
+    }
+
+    @Test
+    public void testPinnedPagesAreNotEvicted() {
+        TwoQueuePolicy policy=new TwoQueuePolicy(8);
+        Frame a=admit(policy,1);
+        Frame b=admit(policy,2);
+        a.pin();
+        b.pin();
+        assertNull(policy.evict());
+        b.unpin();
+        assertEquals(b,policy.evict());
+        assertEquals(-1,b.pins.get());
+    }
+}
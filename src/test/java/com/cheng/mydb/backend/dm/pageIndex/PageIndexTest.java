@@ -0,0 +1,89 @@
+package com.cheng.mydb.backend.dm.pageIndex;
+
+import com.cheng.mydb.backend.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageIndexTest {
+
+    @Test
+    public void testSelectHasEnoughSpace() {
+        PageIndex pIndex=new PageIndex();
+        pIndex.add(2,100);
+        pIndex.add(3,3000);
+        pIndex.add(4,8000);
+        PageInfo pi=pIndex.select(2000);
+        assertEquals(3,pi.pgno);
+        pi=pIndex.select(2000);
+        assertEquals(4,pi.pgno);
+        assertNull(pIndex.select(2000));
+        assertEquals(1,pIndex.pages().size());
+    }
+
+    // 空间要求超过一个区间的最大值时不会返回只够一部分的页面
+    @Test
+    public void testSelectTooLarge() {
+        PageIndex pIndex=new PageIndex();
+        pIndex.add(2,PageCache.PAGE_SIZE-1);
+        assertNull(pIndex.select(PageCache.PAGE_SIZE));
+    }
+
+    // 刚放回的页面放在队头，下一次插入优先使用
+    @Test
+    public void testReturnedPageIsReusedFirst() {
+        PageIndex pIndex=new PageIndex();
+        pIndex.add(2,5000);
+        pIndex.add(3,5000);
+        PageInfo pi=pIndex.select(100);
+        pIndex.add(pi.pgno,4900);
+        assertEquals(pi.pgno,pIndex.select(100).pgno);
+    }
+
+    // 同时插入的线程拿到的页面各不相同，每一页在放回之前只属于一个线程
+    @Test
+    public void testConcurrentSelectsGetDistinctPages() throws Exception {
+        PageIndex pIndex=new PageIndex();
+        int pages=64;
+        for (int pgno=2;pgno<pages+2;pgno++){
+            pIndex.add(pgno,4000);
+        }
+        Set<Integer> held=ConcurrentHashMap.newKeySet();
+        List<Throwable> errors=new ArrayList<>();
+        List<Thread> workers=new ArrayList<>();
+        for (int t=0;t<8;t++){
+            Thread w=new Thread(() -> {
+                for (int i=0;i<20000;i++){
+                    PageInfo pi=pIndex.select(100);
+                    if (pi==null) continue;
+                    if (!held.add(pi.pgno)){
+                        synchronized (errors){
+                            errors.add(new AssertionError("page "+pi.pgno+" selected twice"));
+                        }
+                    }
+                    held.remove(pi.pgno);
+                    pIndex.add(pi.pgno,pi.freeSpace);
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w:workers){
+            w.join();
+        }
+        assertTrue(errors.toString(),errors.isEmpty());
+        Set<Integer> all=new HashSet<>();
+        for (PageInfo pi:pIndex.pages()){
+            assertTrue(all.add(pi.pgno));
+        }
+        assertEquals(pages,all.size());
+    }
+}
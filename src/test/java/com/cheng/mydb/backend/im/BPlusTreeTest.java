@@ -0,0 +1,108 @@
+package com.cheng.mydb.backend.im;
+
+import com.cheng.mydb.backend.dm.DataManager;
+import com.cheng.mydb.backend.tm.TransactionManager;
+import com.cheng.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BPlusTreeTest {
+    private static final int KEYS=5000;
+
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private List<Long> prefetched=Collections.synchronizedList(new ArrayList<>());
+    private BPlusTree tree;
+
+    // 记录BPlusTree发出的预读提示，其他调用直接交给真正的DataManager
+    @Before
+    public void setUp() throws Exception {
+        String path=new File(tmp.getRoot(),"bt").getPath();
+        tm=TransactionManagerImpl.create(path);
+        dm=DataManager.create(path,1<<22,tm);
+        DataManager recording=(DataManager) Proxy.newProxyInstance(DataManager.class.getClassLoader(),
+                new Class[]{DataManager.class},(proxy,method,args) -> {
+                    if (method.getName().equals("prefetch")){
+                        prefetched.add((Long) args[0]);
+                    }
+                    try {
+                        return method.invoke(dm,args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        tree=BPlusTree.load(BPlusTree.create(recording),recording);
+        for (int i=0;i<KEYS;i++){
+            long key=(i*7919L)%KEYS;    // 乱序插入，叶子分布在不同的位置
+            tree.insert(key*2,key);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        tree.close();
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testSearchRange() throws Exception {
+        List<Long> all=tree.searchRange(0,Long.MAX_VALUE);
+        assertEquals(KEYS,all.size());
+        for (int i=0;i<KEYS;i++){
+            assertEquals(i,(long)all.get(i));
+        }
+        List<Long> part=tree.searchRange(1001,3000);
+        assertEquals(1000,part.size());
+        assertEquals(501L,(long)part.get(0));
+        assertEquals(1500L,(long)part.get(999));
+    }
+
+    // 单点查找只访问一个叶子，不需要预读
+    @Test
+    public void testPointSearchDoesNotPrefetch() throws Exception {
+        prefetched.clear();
+        for (long key=0;key<KEYS;key+=97){
+            assertEquals(Collections.singletonList(key),tree.search(key*2));
+        }
+        assertEquals(0,prefetched.size());
+    }
+
+    // 长范围查找时，预读的是之后会扫描到的叶子，每个叶子最多提示一次，第一个叶子由查找本身读入
+    @Test
+    public void testRangeScanPrefetchesLeavesAhead() throws Exception {
+        prefetched.clear();
+        tree.searchRange(0,Long.MAX_VALUE);
+        assertTrue(prefetched.size()>0);
+        assertEquals(prefetched.size(),new HashSet<>(prefetched).size());
+
+        List<Long> leaves=new ArrayList<>();
+        BPlusTree.LeafRes lr=tree.searchLeaf(tree.rootUid(),0,0);
+        for (long leaf=lr.leafUid;leaf!=0;){
+            leaves.add(leaf);
+            Node node=Node.loadNode(tree,leaf);
+            leaf=Node.getRawSibling(node.raw);
+            node.release();
+        }
+        // 父节点中的儿子顺序可能暂时落后于兄弟链（查找时沿兄弟指针补偿），预读只要求覆盖之后的叶子
+        assertTrue(leaves.subList(1,leaves.size()).containsAll(prefetched));
+        assertTrue(prefetched.size()>=(leaves.size()-1)*9/10);
+    }
+}
@@ -0,0 +1,64 @@
+package com.cheng.mydb.backend.tm;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatusCacheTest {
+    private static final int MAX_PAGES=4;
+
+    // 模拟XID文件：记录写入的状态和每一页被读入的次数
+    private final Map<Long,Byte> file=new HashMap<>();
+    private final Map<Long,Integer> loads=new HashMap<>();
+
+    private final StatusCache cache=new StatusCache(this::load,MAX_PAGES);
+
+    private byte[] load(long pageNo){
+        loads.merge(pageNo,1,Integer::sum);
+        byte[] raw=new byte[StatusCache.XIDS_PER_PAGE];
+        for (int slot=0;slot<raw.length;slot++){
+            Byte status=file.get(pageNo*StatusCache.XIDS_PER_PAGE+slot+1);
+            if (status!=null) raw[slot]=status;
+        }
+        return raw;
+    }
+
+    private static long xid(long pageNo,int slot){
+        return pageNo*StatusCache.XIDS_PER_PAGE+slot+1;
+    }
+
+    // 和TM一样先写文件再更新缓存
+    private void set(long xid,byte status){
+        file.put(xid,status);
+        cache.set(xid,status);
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        for (long p=0;p<100;p++){
+            set(xid(p,7),(byte)1);
+            assertTrue(cache.size()<=MAX_PAGES);
+        }
+        // 淘汰的页面重新读入时状态不变
+        for (long p=0;p<100;p++){
+            assertEquals(1,cache.get(xid(p,7)));
+            assertEquals(0,cache.get(xid(p,8)));
+        }
+        assertTrue(cache.size()<=MAX_PAGES);
+    }
+
+    // 一直被访问的页面不会被淘汰
+    @Test
+    public void testHotPageStaysCached() {
+        set(xid(0,1),(byte)2);
+        for (long p=1;p<100;p++){
+            cache.get(xid(p,0));
+            assertEquals(2,cache.get(xid(0,1)));
+        }
+        assertEquals(1,(int)loads.get(0L));
+    }
+}
@@ -0,0 +1,139 @@
+package com.cheng.mydb.backend.tm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionManagerTest {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private String path(){
+        return new File(tmp.getRoot(),"tm").getPath();
+    }
+
+    // 按xid决定测试中事务的结局：0正在进行，1提交，2回滚
+    private static int outcome(long xid){
+        return (int)(xid*7%3);
+    }
+
+    private static void finish(TransactionManager tm,long xid){
+        if (outcome(xid)==1){
+            tm.commit(xid);
+        } else if (outcome(xid)==2){
+            tm.abort(xid);
+        }
+    }
+
+    private static void assertStatus(TransactionManager tm,long xid){
+        assertEquals("xid "+xid,outcome(xid)==0,tm.isActive(xid));
+        assertEquals("xid "+xid,outcome(xid)==1,tm.isCommitted(xid));
+        assertEquals("xid "+xid,outcome(xid)==2,tm.isAborted(xid));
+    }
+
+    // 一个字节中的4个事务状态互不影响，跨过多次预留之后重新打开状态不变
+    @Test
+    public void testStatusesSurviveReopen() {
+        TransactionManager tm=TransactionManagerImpl.create(path());
+        int n=3*TransactionManagerImpl.XID_RESERVE+5;
+        for (int i=0;i<n;i++){
+            finish(tm,tm.begin());
+        }
+        for (long xid=1;xid<=n;xid++){
+            assertStatus(tm,xid);
+        }
+        tm.close();
+
+        tm=TransactionManagerImpl.open(path());
+        for (long xid=1;xid<=n;xid++){
+            assertStatus(tm,xid);
+        }
+        // 预留了但没有分配的xid不会被重复使用
+        long next=tm.begin();
+        assertTrue(next>n);
+        assertTrue(tm.isActive(next));
+        tm.close();
+    }
+
+    // 旧格式（8字节事务数，每个事务1字节）的文件打开时转换成新格式，状态超过一个EXTENT_SIZE，之后还能继续扩展
+    @Test
+    public void testMigrateOldFormat() throws Exception {
+        long n=(long)TransactionManagerImpl.EXTENT_SIZE*TransactionManagerImpl.XIDS_PER_BYTE+10;
+        try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(path()+TransactionManagerImpl.XID_SUFFIX)))){
+            out.writeLong(n);
+            for (long xid=1;xid<=n;xid++){
+                out.writeByte(outcome(xid));
+            }
+        }
+
+        TransactionManager tm=TransactionManagerImpl.open(path());
+        assertFalse(new File(path()+".xid.tmp").exists());
+        for (long xid=1;xid<=n;xid+=997){
+            assertStatus(tm,xid);
+        }
+        assertStatus(tm,n);
+        assertEquals(n+1,tm.nextXID());
+
+        long last=0;
+        for (int i=0;i<2*TransactionManagerImpl.XID_RESERVE;i++){
+            last=tm.begin();
+            finish(tm,last);
+        }
+        tm.close();
+
+        tm=TransactionManagerImpl.open(path());
+        for (long xid=n+1;xid<=last;xid++){
+            assertStatus(tm,xid);
+        }
+        for (long xid=1;xid<=n;xid+=997){
+            assertStatus(tm,xid);
+        }
+        tm.close();
+    }
+
+    // freeze之后，horizon之前的事务都视为已提交，之后的状态不变
+    @Test
+    public void testFreeze() {
+        TransactionManager tm=TransactionManagerImpl.create(path());
+        int n=3*TransactionManagerImpl.XID_RESERVE;
+        for (int i=0;i<n;i++){
+            finish(tm,tm.begin());
+        }
+        long horizon=2*TransactionManagerImpl.XID_RESERVE+3;
+        long frozen=(horizon-1)/TransactionManagerImpl.XIDS_PER_BYTE*TransactionManagerImpl.XIDS_PER_BYTE;
+        tm.freeze(horizon);
+        checkFrozen(tm,frozen,n);
+        tm.close();
+
+        tm=TransactionManagerImpl.open(path());
+        checkFrozen(tm,frozen,n);
+        // 更早的horizon不会撤销已经进行的freeze
+        tm.freeze(1);
+        checkFrozen(tm,frozen,n);
+        long xid=tm.begin();
+        tm.commit(xid);
+        assertTrue(tm.isCommitted(xid));
+        tm.close();
+    }
+
+    private static void checkFrozen(TransactionManager tm,long frozen,long n){
+        for (long xid=1;xid<=frozen;xid++){
+            assertTrue("xid "+xid,tm.isCommitted(xid));
+            assertFalse("xid "+xid,tm.isActive(xid));
+            assertFalse("xid "+xid,tm.isAborted(xid));
+        }
+        for (long xid=frozen+1;xid<=n;xid++){
+            assertStatus(tm,xid);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.cheng.mydb.backend.vm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionTest {
+
+    // 只复制active的前count个，之后的元素不属于快照
+    @Test
+    public void testSnapshotCopiesActivePrefix() {
+        long[] active={3,5,8,42,99};
+        Transaction t=Transaction.newTransaction(10,1,active,3);
+        active[0]=4;
+        assertEquals(3,t.xmin);
+        assertTrue(t.isInSnapshot(3));
+        assertFalse(t.isInSnapshot(4));
+        assertTrue(t.isInSnapshot(5));
+        assertTrue(t.isInSnapshot(8));
+        assertFalse(t.isInSnapshot(42));
+    }
+
+    // 早于xmin和不早于自己的事务不在快照中
+    @Test
+    public void testSnapshotBounds() {
+        Transaction t=Transaction.newTransaction(10,1,new long[]{3,5},2);
+        assertFalse(t.isInSnapshot(0));
+        assertFalse(t.isInSnapshot(2));
+        assertFalse(t.isInSnapshot(10));
+        assertFalse(t.isInSnapshot(11));
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        Transaction t=Transaction.newTransaction(7,1,new long[0],0);
+        assertEquals(7,t.xmin);
+        for (long xid=0;xid<=8;xid++){
+            assertFalse(t.isInSnapshot(xid));
+        }
+    }
+
+    // 读已提交不需要快照
+    @Test
+    public void testReadCommittedHasNoSnapshot() {
+        Transaction t=Transaction.newTransaction(7,0,new long[]{1,2},2);
+        assertNull(t.snapshot);
+    }
+}